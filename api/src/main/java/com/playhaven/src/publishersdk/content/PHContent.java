@@ -12,7 +12,7 @@ public class PHContent extends v2.com.playhaven.model.PHContent {
     public PHContent(v2.com.playhaven.model.PHContent content) {
         this.transition         = content.transition;
         this.closeURL           = content.closeURL;
-        this.context            = content.context;
+        this.setContext         (content.getContext()); // parsed right away since old code reads the context field
         this.url                = content.url;
         this.closeButtonDelay   = content.closeButtonDelay;
         this.preloaded          = content.preloaded;
@@ -70,10 +70,10 @@ public class ContentDelegateAdapter implements PHContentRequestListener {
         // we prefer the base request listener over the
         // more robust content listener.
         if (request_delegate != null)
-            request_delegate.requestSucceeded((PHAPIRequest) request, content.context);
+            request_delegate.requestSucceeded((PHAPIRequest) request, content.getContext());
 
         else if (content_delegate != null)
-            content_delegate.requestSucceeded((PHAPIRequest) request, content.context);
+            content_delegate.requestSucceeded((PHAPIRequest) request, content.getContext());
     }
 
     @Override
@@ -2,21 +2,45 @@ package v2.com.playhaven.cache;
 
 import android.content.Context;
 import com.playhaven.src.utils.PHStringUtil;
+import v2.com.playhaven.configuration.PHConfiguration;
+import v2.com.playhaven.utils.PHLog;
+import v2.com.playhaven.utils.PHThreadUtils;
 
 import java.io.*;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.GZIPInputStream;
 
 /**
  * Simple disk-based cache for caching resources from HttpRequests. PHPrefetchTaskMakes extensive use of it.
  * This class basically provides a mapping between URLs and FS data.
- * Note that this class is not thread safe so users must be careful.
+ * This class is thread safe: downloads stream into their own temporary files without holding
+ * any lock, only committing a file (the rename and the index update) locks its key (see
+ * {@link #getKeyLock(String)}), and lookups only ever wait for the in-memory index.
  *
  * We need some way to handle cache refresh? Some sort of cache expiry?
  *
- * We need some way of handling an automatic cleanup?
+ * The cache is bounded (see {@link #setMaxBytes(long)}): we keep track of the size and last
+ * access of every entry and evict the least recently used ones once we go over budget.
+ * The index lives in memory and is persisted in an append-only journal (see {@link PHCacheJournal})
+ * which we load once, in the background, when the cache is installed. Lookups never touch the disk.
+ * Files are written under a temporary name and renamed into place once complete, so readers
+ * never see a partially downloaded file.
+ *
+ * Files are named after the SHA-1 of their normalized url and spread over two levels of
+ * shard directories (ab/cd/abcd...) so that names stay short, urls never collide and no
+ * single directory grows too big (see {@link #convertToFilename(java.net.URL)}).
+ * Entries from the most recent precache manifest are pinned (see {@link #setPinnedUrls(java.util.Collection)})
+ * and never evicted, even if that means going over budget. The pins are kept in the journal as well.
  *
  * Users must call {@link PHCache#installCache(android.content.Context)} before
  * calling {@link v2.com.playhaven.cache.PHCache#getSharedCache()} to initiate the Singleton instance.
@@ -56,11 +80,51 @@ public class PHCache {
      */
     private File cacheDirectory;
 
-    /** In memory mapping of urls to file names. If the mapping doens't exist
-     * in this hash map, we check the file system directly. This merely serves
-     * as a small performance boost.
+    /** Suffix of files which are still being written */
+    private static final String TMP_SUFFIX = ".tmp";
+
+    /** Guards {@link #entries}, {@link #totalBytes}, {@link #pinned} and {@link #legacyNames}. Never wait for a key lock while holding it. */
+    private final Object indexLock = new Object();
+
+    /** How many locks the keys are spread over */
+    private static final int KEY_LOCK_STRIPES = 16;
+
+    /** Serialize committing and deleting the file of a key (see {@link #getKeyLock(String)}) */
+    private final Object[] keyLocks = new Object[KEY_LOCK_STRIPES];
+
+    /** Gives every download its own temporary file */
+    private final AtomicInteger tmpCounter = new AtomicInteger();
+
+    /** key -> entry, least recently used first (null until we've loaded the journal) */
+    private LinkedHashMap<String, PHCacheEntry> entries;
+
+    /** Set once {@link #entries} is complete, lookups don't wait for the index lock until then */
+    private volatile boolean indexLoaded;
+
+    /** Whether a lookup already asked for the index to be loaded in the background */
+    private final AtomicBoolean indexLoadQueued = new AtomicBoolean();
+
+    private final PHCacheJournal journal;
+
+    /** When we were created: temporary files older than that are leftovers of interrupted downloads */
+    private final long createdAt = System.currentTimeMillis();
+
+    private long totalBytes;
+
+    /** The keys of the entries we never evict */
+    private HashSet<String> pinned = new HashSet<String>();
+
+    /**
+     * Names of the files left in the cache directory by the flat layout we had before the journal
+     * (see {@link #getLegacyName(java.net.URL)}). We can't tell their url from their name so they're
+     * moved to where they belong when their url is first asked for.
      */
-    private HashMap<URL, File> cachedMapping = new HashMap<URL, File>();
+    private final HashSet<String> legacyNames = new HashSet<String>();
+
+    private volatile long maxBytes = PHConfiguration.DEFAULT_CACHE_SIZE_BYTES;
+
+    /** Loads and trims the index off the main thread and is the only one writing the journal */
+    private static final ExecutorService cacheWorker = PHThreadUtils.newSerialExecutor("PlayHaven-Cache");
 
     public static PHCache getSharedCache() {
         return sharedCache;
@@ -81,16 +145,101 @@ public class PHCache {
     public static void installCache(Context context) {
         File dir = new File(context.getCacheDir() + File.separator + CACHE_DIR);
 
+        long maxBytes = new PHConfiguration().getCacheSize(context);
+
+        // keep the existing cache (and what it knows about its entries) if it's already installed
+        if (sharedCache != null && dir.equals(sharedCache.getRootCacheDirectory())) {
+            sharedCache.setMaxBytes(maxBytes);
+            return;
+        }
+
         // if the cache directory doesn't exist, create it
         if (! dir.exists())
             dir.mkdir();
 
-        sharedCache = new PHCache(dir);
+        PHCache cache = new PHCache(dir);
+
+        // which also gets the index ready (in the background) before anyone looks something up
+        cache.setMaxBytes(maxBytes);
+
+        sharedCache = cache;
     }
 
     /** Clients should pass in a cache directory */
     public PHCache(File cacheDirectory) {
         this.cacheDirectory = cacheDirectory;
+        this.journal        = new PHCacheJournal(cacheDirectory);
+
+        for (int i = 0; i < KEY_LOCK_STRIPES; i++)
+            keyLocks[i] = new Object();
+    }
+
+    /** Sets the most bytes we keep on disk, evicting (in the background) right away if we're over */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+
+        cacheWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                trimToSize();
+            }
+        });
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /** The number of bytes currently in the cache (0 until the index has been loaded in the background) */
+    public long getSize() {
+        if ( ! indexLoaded) {
+            loadIndexInBackground();
+            return 0;
+        }
+
+        synchronized (indexLock) {
+            return totalBytes;
+        }
+    }
+
+    /**
+     * Pins the given urls (the most recent precache manifest) so that they are never evicted.
+     * Replaces whatever was pinned before. The index work (and any eviction it allows) happens
+     * in the background since we're called on the main thread. Files of the manifest which are
+     * still in the flat layout get moved into place at the same time.
+     */
+    public void setPinnedUrls(Collection<String> urls) {
+        final HashSet<String> keys = new HashSet<String>();
+        final ArrayList<URL> parsed = new ArrayList<URL>();
+
+        for (String url : urls) {
+            try {
+                URL parsedUrl = new URL(url);
+
+                keys.add(getKey(parsedUrl));
+                parsed.add(parsedUrl);
+
+            } catch (MalformedURLException e) {
+                // can't be in the cache either
+            }
+        }
+
+        cacheWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (indexLock) {
+                    loadIndex();
+
+                    pinned = keys;
+                    journalPins(keys);
+                }
+
+                for (URL url : parsed)
+                    migrateLegacyFile(url);
+
+                trimToSize();
+            }
+        });
     }
 
     /** gets the location of the cache */
@@ -98,6 +247,50 @@ public class PHCache {
         return this.cacheDirectory;
     }
 
+    /** The key of the given url in the index: the path of its file relative to the cache directory */
+    private String getKey(URL url) {
+        String normalized = normalize(url);
+        String digest;
+
+        try {
+            digest = PHStringUtil.hexDigest(normalized);
+        } catch (Exception e) { // SHA-1 is always there but we'd still rather have a weaker name than no cache
+            digest = String.format("%08x", normalized.hashCode());
+        }
+
+        return digest.substring(0, 2) + "/" + digest.substring(2, 4) + "/" + digest;
+    }
+
+    /** Same as {@link #getKey(java.net.URL)} but null for urls we can't make sense of */
+    private String getKey(String url) {
+        try {
+            return getKey(new URL(url));
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Puts urls which point to the same resource in the same form: lower case scheme and host,
+     * no default port and no fragment (which never makes it to the server anyway).
+     */
+    private static String normalize(URL url) {
+        StringBuilder normalized = new StringBuilder(url.toString().length());
+
+        normalized.append(url.getProtocol().toLowerCase()).append("://");
+
+        if (url.getHost() != null)
+            normalized.append(url.getHost().toLowerCase());
+
+        if (url.getPort() != -1 && url.getPort() != url.getDefaultPort())
+            normalized.append(':').append(url.getPort());
+
+        String file = url.getFile();
+        normalized.append(file == null || file.length() == 0 ? "/" : file);
+
+        return normalized.toString();
+    }
+
     /** Checks whether or not the shared cache instance has been initialized */
     public static boolean hasBeenInstalled() {
         return (sharedCache != null);
@@ -109,21 +302,13 @@ public class PHCache {
     }
 
     /**
-     * Converts a url to a file name by stripping out illegal characters
-     * and appending the cache directory. This method is only used
-     * internally but we make it public for unit testing.
+     * Converts a url to a file name (the hex SHA-1 of the normalized url, in its shard directory
+     * under the cache directory). This method is only used internally but we make it public for unit testing.
      * @param url The URL key we wish to convert to the file name
      * @return A valid file pointer.
     */
     public File convertToFilename(URL url) {
-        // replace any slashes which might cause problems in the file name
-        String clean_slug = url.toString().replace(File.separator, "_");
-
-        // attach cache directory
-        File new_file = new File(sharedCache.getRootCacheDirectory().getAbsolutePath() + File.separator +  clean_slug);
-
-        // we're good to go!
-        return new_file;
+        return new File(cacheDirectory, getKey(url));
     }
 
 
@@ -138,9 +323,33 @@ public class PHCache {
      *
      */
     public void cacheFile(URL requestUrl, InputStream content, boolean isCompressed) {
-        File outputFile = convertToFilename(requestUrl);
+        cacheFile(requestUrl, content, isCompressed, null);
+    }
+
+    /**
+     * Same as {@link #cacheFile(java.net.URL, java.io.InputStream, boolean)} but also keeps the
+     * response validators so that we can revalidate the file later (see {@link #getValidators(java.net.URL)}).
+     * @param validators The validators of the response (may be null)
+     */
+    public void cacheFile(URL requestUrl, InputStream content, boolean isCompressed, PHCacheValidators validators) {
+        String key = getKey(requestUrl);
+
+        File outputFile = new File(cacheDirectory, key);
+
+        // readers only ever see the complete file (see the rename below)
+        // and downloads of the same url at the same time don't step on each other
+        File tmpFile = new File(cacheDirectory, key + "." + tmpCounter.incrementAndGet() + TMP_SUFFIX);
 
         PHStringUtil.log("Caching url: " + requestUrl + " to local file: " + outputFile);
+
+        // before creating the shard directory: loading cleans up empty ones
+        synchronized (indexLock) {
+            loadIndex();
+        }
+
+        outputFile.getParentFile().mkdirs();
+
+        BufferedOutputStream cachedFile = null;
         try {
 
             // decide if we need to wrap in decoder in case the interstitial is compressed
@@ -150,7 +359,7 @@ public class PHCache {
 
             // shove bytes from the input stream to the output file
             // we also overwrite any existing data
-            BufferedOutputStream cachedFile = new BufferedOutputStream(new FileOutputStream(outputFile, false));
+            cachedFile = new BufferedOutputStream(new FileOutputStream(tmpFile, false));
 
             byte[] buffer = new byte[BUFFER_SIZE];
             int bytesRead;
@@ -164,40 +373,133 @@ public class PHCache {
 
             content.close();
 
+            ArrayList<PHCacheEntry> evicted;
+
+            // the commit: the file and its index entry change together
+            synchronized (getKeyLock(key)) {
+                if ( ! tmpFile.renameTo(outputFile))
+                    throw new IOException("Could not rename " + tmpFile + " to " + outputFile);
+
+                PHCacheEntry entry = new PHCacheEntry(key, outputFile, requestUrl.toString(), outputFile.length(), System.currentTimeMillis(), validators);
+
+                synchronized (indexLock) {
+                    evicted = onEntryWritten(entry);
+                }
+            }
+
+            deleteEvicted(evicted);
+
+            // what we had in the flat layout is out of date now
+            migrateLegacyFile(requestUrl);
+
         } catch (IOException e) {
+            // the download failed or was aborted (see PHPrefetchTask#cancel) so never keep a truncated file around
+            if (cachedFile != null) {
+                try {
+                    cachedFile.close();
+                } catch (IOException ignored) {
+                    // we're deleting it anyway
+                }
+            }
 
+            tmpFile.delete();
         }
     }
 
     /**
-     * Gets the cached file corresponding to the request url.
+     * Gets the cached file corresponding to the request url. This is a lookup in memory only
+     * (we're usually called on the main thread): until the index has been loaded in the
+     * background every url is a miss.
      * @param url The URL of the item we wish to cache.
      * @return A reference to the file if it exists, null otherwise.
      */
     public File getCachedFile(URL url) {
-        // first check our in-memory map to see if it exists
-        File file = cachedMapping.get(url);
+        if (PHLog.isLoggable(PHLog.Level.Verbose))
+            PHLog.v("Checking cache for URL: " + url);
 
-        PHStringUtil.log("Checking cache for URL: " + url);
+        if ( ! indexLoaded) {
+            loadIndexInBackground();
+            return null;
+        }
 
-        if (file != null)
-            return file;
+        String key = getKey(url);
 
-        // doesn't exist in the map? Let's check the disk
+        PHCacheEntry entry;
+        boolean legacy;
 
-        // convert the url into a file path
-        file = convertToFilename(url);
+        synchronized (indexLock) {
+            // moves it to the most recently used end
+            entry = entries.get(key);
 
-        PHStringUtil.log("Checking cache for file: " + file);
-        if (file.exists()) {
+            if (entry != null) journalRead(key);
 
-            // note for next time
-            cachedMapping.put(url, file);
-            return file;
+            legacy = (entry == null && legacyNames.contains(getLegacyName(url)));
         }
 
+        // a miss this time, moving the file is disk work
+        if (legacy) {
+            final URL legacyUrl = url;
+
+            cacheWorker.execute(new Runnable() {
+                @Override
+                public void run() {
+                    migrateLegacyFile(legacyUrl);
+                }
+            });
+        }
 
-        return null;
+        if (entry == null) return null;
+
+        return entry.file;
+    }
+
+    /**
+     * Gets the validators kept with the cached file of the given url. Counts as a use
+     * of the file (we're only ever asked when the file is about to be refreshed).
+     * Loads the index if need be so only call it off the main thread (the prefetch tasks do).
+     * @return The validators or null if the url isn't cached
+     */
+    public PHCacheValidators getValidators(URL url) {
+        String key = getKey(url);
+
+        synchronized (indexLock) {
+            loadIndex();
+        }
+
+        // we're in the background anyway
+        migrateLegacyFile(url);
+
+        synchronized (indexLock) {
+            PHCacheEntry entry = entries.get(key);
+
+            return (entry != null ? entry.validators : null);
+        }
+    }
+
+    /**
+     * Notes that the server confirmed (304 Not Modified) the cached file of the given url.
+     * @param validators The updated validators (see {@link PHCacheValidators#updatedWith(PHCacheValidators)})
+     * @return false if the file is no longer cached (evicted in the meantime)
+     */
+    public boolean markRevalidated(URL url, PHCacheValidators validators) {
+        String key = getKey(url);
+
+        synchronized (getKeyLock(key)) {
+            synchronized (indexLock) {
+                loadIndex();
+
+                PHCacheEntry entry = entries.get(key);
+
+                if (entry == null) return false;
+
+                entry = entry.withValidators(validators);
+
+                entries.put(key, entry);
+                journalClean(entry);
+
+                return true;
+            }
+        }
     }
 
     /**
@@ -223,4 +525,328 @@ public class PHCache {
         }
 
     }
+
+    ////////////////////////////////////////////////////
+    ////////////////// Index ///////////////////////////
+
+    /** Has the cache thread load the index (unless that's already under way) */
+    private void loadIndexInBackground() {
+        if ( ! indexLoadQueued.compareAndSet(false, true)) return;
+
+        cacheWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (indexLock) {
+                    loadIndex();
+                }
+            }
+        });
+    }
+
+    /** Loads the index from the journal the first time we need it. Must hold the index lock. */
+    private void loadIndex() {
+        if (entries != null) return;
+
+        entries    = new LinkedHashMap<String, PHCacheEntry>(16, 0.75f, true);
+        totalBytes = 0;
+
+        LinkedHashMap<String, PHCacheEntry> journaled = new LinkedHashMap<String, PHCacheEntry>(16, 0.75f, true);
+        HashSet<String> journaledPins = new HashSet<String>();
+
+        journal.read(journaled, journaledPins);
+
+        pinned = new HashSet<String>();
+
+        // entries from an older layout move to where their url belongs now (keeping their order).
+        // Files from before the journal wait for their url, see migrateLegacyFile(URL).
+        for (PHCacheEntry entry : journaled.values()) {
+            String key = getKey(entry.url);
+
+            if (entry.key.equals(key)) {
+                entries.put(key, entry);
+
+                if (journaledPins.contains(key)) pinned.add(key);
+                continue;
+            }
+
+            if (key != null) {
+                File target = new File(cacheDirectory, key);
+                target.getParentFile().mkdirs();
+
+                if (entry.file.renameTo(target)) {
+                    entries.put(key, new PHCacheEntry(key, target, entry.url, entry.size, entry.written, entry.validators));
+
+                    if (journaledPins.contains(entry.key)) pinned.add(key);
+                    continue;
+                }
+            }
+
+            entry.file.delete();
+        }
+
+        // drop entries whose file is gone or isn't what we wrote
+        Iterator<PHCacheEntry> iterator = entries.values().iterator();
+
+        while (iterator.hasNext()) {
+            PHCacheEntry entry = iterator.next();
+
+            if (entry.file.isFile() && entry.file.length() == entry.size) {
+                totalBytes += entry.size;
+            } else {
+                iterator.remove();
+                entry.file.delete();
+            }
+        }
+
+        // and files the index doesn't know about (such as the leftovers of interrupted downloads)
+        deleteUnknownFiles(cacheDirectory, 0);
+
+        // compacts the journal and gets rid of a record a crash might have cut short
+        journalRebuild();
+
+        indexLoaded = true;
+
+        PHStringUtil.log("Loaded cache index: " + entries.size() + " files, " + totalBytes + " bytes");
+    }
+
+    /** How deep the shard directories go (see {@link #getKey(java.net.URL)}) */
+    private static final int SHARD_LEVELS = 2;
+
+    /** Deletes the files in the cache directory which aren't in the index (and empty shards). Must hold the index lock. */
+    private void deleteUnknownFiles(File directory, int level) {
+        File[] files = directory.listFiles();
+
+        if (files == null) return;
+
+        for (File file : files) {
+            if (file.isDirectory()) {
+                if (level < SHARD_LEVELS) {
+                    deleteUnknownFiles(file, level + 1);
+
+                    // only goes through if it's empty
+                    file.delete();
+                }
+                continue;
+            }
+
+            if (level == 0 && PHCacheJournal.isJournalFile(file.getName())) continue;
+
+            if (level == SHARD_LEVELS && entries.containsKey(getRelativePath(file))) continue;
+
+            boolean tmp = file.getName().endsWith(TMP_SUFFIX);
+
+            // leave downloads which are under way alone (allowing for coarse modification times)
+            if (tmp && file.lastModified() > createdAt - 2000) continue;
+
+            if (level == 0 && ! tmp) {
+                legacyNames.add(file.getName());
+                continue;
+            }
+
+            file.delete();
+        }
+    }
+
+    private String getRelativePath(File file) {
+        File shard = file.getParentFile();
+
+        return shard.getParentFile().getName() + "/" + shard.getName() + "/" + file.getName();
+    }
+
+    /** The name the file of the given url had in the flat layout, directly in the cache directory */
+    private static String getLegacyName(URL url) {
+        return url.toString().replace(File.separator, "_");
+    }
+
+    /**
+     * Moves the file the given url had in the flat layout (if any) into its shard and indexes it.
+     * Just deletes it if the url has been downloaded again since. Must <em>not</em> hold the index lock.
+     */
+    private void migrateLegacyFile(URL url) {
+        String legacyName = getLegacyName(url);
+
+        synchronized (indexLock) {
+            if ( ! legacyNames.remove(legacyName)) return;
+        }
+
+        String key = getKey(url);
+
+        File legacyFile = new File(cacheDirectory, legacyName);
+        File outputFile = new File(cacheDirectory, key);
+
+        ArrayList<PHCacheEntry> evicted;
+
+        synchronized (getKeyLock(key)) {
+            boolean superseded;
+
+            synchronized (indexLock) {
+                superseded = entries.containsKey(key);
+            }
+
+            outputFile.getParentFile().mkdirs();
+
+            if (superseded || ! legacyFile.renameTo(outputFile)) {
+                legacyFile.delete();
+                return;
+            }
+
+            // the rename keeps the modification time, which is when we downloaded it
+            PHCacheEntry entry = new PHCacheEntry(key, outputFile, url.toString(), outputFile.length(), outputFile.lastModified(), null);
+
+            synchronized (indexLock) {
+                evicted = onEntryWritten(entry);
+            }
+        }
+
+        deleteEvicted(evicted);
+
+        PHStringUtil.log("Moved cached file of " + url + " from the flat layout to " + key);
+    }
+
+    /** The lock guarding the file of the given key. Take it before the index lock, never while holding it. */
+    private Object getKeyLock(String key) {
+        return keyLocks[(key.hashCode() & 0x7fffffff) % KEY_LOCK_STRIPES];
+    }
+
+    /**
+     * Must hold the index lock.
+     * @return the entries evicted to make room, see {@link #deleteEvicted(java.util.List)}
+     */
+    private ArrayList<PHCacheEntry> onEntryWritten(PHCacheEntry entry) {
+        PHCacheEntry previous = entries.remove(entry.key);
+
+        if (previous != null)
+            totalBytes -= previous.size;
+
+        entries.put(entry.key, entry);
+        totalBytes += entry.size;
+
+        journalClean(entry);
+
+        ArrayList<PHCacheEntry> evicted = evictIfNeeded();
+
+        if (journal.needsRebuild(entries.size()))
+            journalRebuild();
+
+        return evicted;
+    }
+
+    ////////////////////////////////////////////////////
+    ////////////////// Journal /////////////////////////
+
+    // Only the cache thread writes the journal so no one waits for the disk while holding the
+    // index lock. The records are queued while holding it so they land in the order the index changed.
+
+    /** Must hold the index lock */
+    private void journalClean(final PHCacheEntry entry) {
+        cacheWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                journal.writeClean(entry);
+            }
+        });
+    }
+
+    /** Must hold the index lock */
+    private void journalRead(final String key) {
+        cacheWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                journal.writeRead(key);
+            }
+        });
+    }
+
+    /** Must hold the index lock */
+    private void journalRemove(final String key) {
+        cacheWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                journal.writeRemove(key);
+            }
+        });
+    }
+
+    /** Must hold the index lock */
+    private void journalPins(final Collection<String> keys) {
+        cacheWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                journal.writePins(keys);
+            }
+        });
+    }
+
+    /** Rebuilds the journal from a copy of the index as it is now. Must hold the index lock. */
+    private void journalRebuild() {
+        final ArrayList<PHCacheEntry> snapshot = new ArrayList<PHCacheEntry>(entries.values());
+        final HashSet<String> pins = new HashSet<String>(pinned);
+
+        cacheWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                journal.rebuild(snapshot, pins);
+            }
+        });
+    }
+
+    ////////////////////////////////////////////////////
+    ////////////////// Eviction ////////////////////////
+
+    /** Evicts entries until we're within budget */
+    private void trimToSize() {
+        ArrayList<PHCacheEntry> evicted;
+
+        synchronized (indexLock) {
+            loadIndex();
+
+            evicted = evictIfNeeded();
+        }
+
+        deleteEvicted(evicted);
+    }
+
+    /**
+     * Drops the least recently used (unpinned) entries from the index until we're within budget.
+     * Must hold the index lock. The files are deleted afterwards, see {@link #deleteEvicted(java.util.List)}.
+     */
+    private ArrayList<PHCacheEntry> evictIfNeeded() {
+        ArrayList<PHCacheEntry> evicted = new ArrayList<PHCacheEntry>();
+
+        if (totalBytes <= maxBytes) return evicted;
+
+        Iterator<PHCacheEntry> iterator = entries.values().iterator();
+
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            PHCacheEntry entry = iterator.next();
+
+            if (pinned.contains(entry.key)) continue;
+
+            iterator.remove();
+            totalBytes -= entry.size;
+
+            journalRemove(entry.key);
+
+            evicted.add(entry);
+        }
+
+        return evicted;
+    }
+
+    /** Deletes the files of evicted entries. Must <em>not</em> hold the index lock. */
+    private void deleteEvicted(List<PHCacheEntry> evicted) {
+        for (PHCacheEntry entry : evicted) {
+            synchronized (getKeyLock(entry.key)) {
+
+                // written again since we evicted it
+                synchronized (indexLock) {
+                    if (entries.containsKey(entry.key)) continue;
+                }
+
+                entry.file.delete();
+            }
+
+            PHStringUtil.log("Evicted from cache: " + entry.key);
+        }
+    }
 }
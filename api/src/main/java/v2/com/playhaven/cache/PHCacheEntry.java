@@ -0,0 +1,38 @@
+package v2.com.playhaven.cache;
+
+import java.io.File;
+
+/**
+ * A single file in the {@link PHCache} as recorded in its journal (see {@link PHCacheJournal}).
+ * The key is the path of the file relative to the cache directory.
+ */
+class PHCacheEntry {
+
+    final String key;
+
+    final File file;
+
+    /** The url the file was downloaded from (empty if we never knew it) */
+    final String url;
+
+    final long size;
+
+    /** When the file was written (ms since the epoch) */
+    final long written;
+
+    final PHCacheValidators validators;
+
+    public PHCacheEntry(String key, File file, String url, long size, long written, PHCacheValidators validators) {
+        this.key        = key;
+        this.file       = file;
+        this.url        = (url != null ? url : "");
+        this.size       = size;
+        this.written    = written;
+        this.validators = (validators != null ? validators : new PHCacheValidators(null, null, 0));
+    }
+
+    /** The same file with the given validators (after the server told us it's unchanged) */
+    public PHCacheEntry withValidators(PHCacheValidators validators) {
+        return new PHCacheEntry(key, file, url, size, written, validators);
+    }
+}
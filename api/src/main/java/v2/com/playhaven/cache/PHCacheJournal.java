@@ -0,0 +1,260 @@
+package v2.com.playhaven.cache;
+
+import v2.com.playhaven.utils.PHLog;
+
+import java.io.*;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+/**
+ * The append-only journal which {@link PHCache} keeps its index in (in the spirit of DiskLruCache).
+ * After a short header every line is one tab separated record:
+ * <ul>
+ *     <li>CLEAN key size written url etag last-modified expires: the file was (re)written completely
+ *     or revalidated (the validators are empty if the server didn't send any)</li>
+ *     <li>READ key: the file was read (to restore the least recently used order)</li>
+ *     <li>REMOVE key: the file was evicted or deleted</li>
+ *     <li>PINS key...: the keys which are pinned from now on (replacing the ones before)</li>
+ * </ul>
+ * Replaying the journal gives the index back; lines we can't make sense of (such as a line cut short
+ * by a crash) are skipped. Once enough records are redundant we rebuild the journal from the index.
+ *
+ * Not thread safe: {@link PHCache} reads it once while loading its index, before any record
+ * is written, and only ever writes it from its cache thread.
+ */
+class PHCacheJournal {
+
+    public static final String JOURNAL_FILE = "journal";
+
+    private static final String JOURNAL_TMP_FILE = "journal.tmp";
+
+    private static final String MAGIC = "playhaven.cache.journal";
+
+    private static final String VERSION = "2";
+
+    /** Journals from before the validators (CLEAN records without the last three fields) */
+    private static final String VERSION_1 = "1";
+
+    private static final String CLEAN  = "CLEAN";
+    private static final String READ   = "READ";
+    private static final String REMOVE = "REMOVE";
+    private static final String PINS   = "PINS";
+
+    /** How many redundant records we put up with before rebuilding the journal */
+    private static final int REBUILD_THRESHOLD = 2000;
+
+    private final File directory;
+
+    private final File journalFile;
+
+    private Writer writer;
+
+    /** Records which no longer describe the current index (checked from other threads, see {@link #needsRebuild(int)}) */
+    private volatile int redundantCount;
+
+    public PHCacheJournal(File directory) {
+        this.directory   = directory;
+        this.journalFile = new File(directory, JOURNAL_FILE);
+    }
+
+    /** Whether the given file belongs to the journal rather than to the cache */
+    public static boolean isJournalFile(String name) {
+        return JOURNAL_FILE.equals(name) || JOURNAL_TMP_FILE.equals(name);
+    }
+
+    /**
+     * Replays the journal into the given (access ordered) index and set of pinned keys.
+     * Leaves them empty if there's no journal yet or it isn't one we can read
+     * (the cache then starts over and rebuilds the journal).
+     */
+    public void read(LinkedHashMap<String, PHCacheEntry> index, Set<String> pins) {
+        // a new cache
+        if ( ! journalFile.exists()) return;
+
+        BufferedReader reader = null;
+
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "UTF-8"));
+
+            String magic   = reader.readLine();
+            String version = reader.readLine();
+
+            if ( ! MAGIC.equals(magic) || ! VERSION.equals(version) && ! VERSION_1.equals(version) || reader.readLine() == null) {
+                PHLog.w("Discarding a cache journal we don't recognize (version " + version + ")");
+                return;
+            }
+
+            int records = 0;
+            int pinRecords = 0;
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                records++;
+
+                String[] fields = line.split("\t", -1);
+
+                if (CLEAN.equals(fields[0]) && (fields.length == 5 || fields.length == 8)) {
+                    String key = fields[1];
+
+                    try {
+                        PHCacheValidators validators = null;
+
+                        if (fields.length == 8)
+                            validators = new PHCacheValidators(fields[5], fields[6], Long.parseLong(fields[7]));
+
+                        PHCacheEntry entry = new PHCacheEntry(key, new File(directory, key), fields[4],
+                                                              Long.parseLong(fields[2]), Long.parseLong(fields[3]), validators);
+                        index.remove(key);
+                        index.put(key, entry);
+
+                    } catch (NumberFormatException e) {
+                        // a record cut short by a crash
+                    }
+
+                } else if (READ.equals(fields[0]) && fields.length == 2) {
+                    index.get(fields[1]);
+
+                } else if (REMOVE.equals(fields[0]) && fields.length == 2) {
+                    index.remove(fields[1]);
+
+                } else if (PINS.equals(fields[0])) {
+                    pins.clear();
+
+                    for (int i = 1; i < fields.length; i++)
+                        pins.add(fields[i]);
+
+                    pinRecords++;
+                }
+            }
+
+            // only the last pins record counts
+            redundantCount = records - index.size() - Math.min(pinRecords, 1);
+
+        } catch (IOException e) {
+            PHLog.w("Could not read the cache journal: " + e.getMessage());
+
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    public void writeClean(PHCacheEntry entry) {
+        append(cleanRecord(entry), true);
+    }
+
+    private static String cleanRecord(PHCacheEntry entry) {
+        PHCacheValidators validators = entry.validators;
+
+        return CLEAN + '\t' + entry.key + '\t' + entry.size + '\t' + entry.written + '\t' + entry.url
+                     + '\t' + emptyIfNull(validators.getETag()) + '\t' + emptyIfNull(validators.getLastModified())
+                     + '\t' + validators.getExpires();
+    }
+
+    private static String emptyIfNull(String value) {
+        return (value != null ? value : "");
+    }
+
+    /** Reads are frequent so we don't flush for them, losing a few on a crash is harmless */
+    public void writeRead(String key) {
+        redundantCount++;
+
+        append(READ + '\t' + key, false);
+    }
+
+    public void writeRemove(String key) {
+        redundantCount += 2; // the remove and the clean it cancels
+
+        append(REMOVE + '\t' + key, true);
+    }
+
+    /** Records the pinned keys, replacing the ones before */
+    public void writePins(Collection<String> keys) {
+        redundantCount++; // the pins record it replaces
+
+        append(pinsRecord(keys), true);
+    }
+
+    private static String pinsRecord(Collection<String> keys) {
+        StringBuilder record = new StringBuilder(PINS);
+
+        for (String key : keys)
+            record.append('\t').append(key);
+
+        return record.toString();
+    }
+
+    public boolean needsRebuild(int indexSize) {
+        return (redundantCount >= REBUILD_THRESHOLD && redundantCount >= indexSize);
+    }
+
+    /** Writes a fresh journal holding just the given entries (least recently used first) and pins and swaps it in */
+    public void rebuild(Collection<PHCacheEntry> entries, Collection<String> pins) {
+        close();
+
+        File tmp = new File(directory, JOURNAL_TMP_FILE);
+
+        Writer rebuilt = null;
+
+        try {
+            rebuilt = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp, false), "UTF-8"));
+
+            rebuilt.write(MAGIC + "\n" + VERSION + "\n\n");
+
+            for (PHCacheEntry entry : entries)
+                rebuilt.write(cleanRecord(entry) + '\n');
+
+            if ( ! pins.isEmpty())
+                rebuilt.write(pinsRecord(pins) + '\n');
+
+            rebuilt.close();
+            rebuilt = null;
+
+            if ( ! tmp.renameTo(journalFile))
+                throw new IOException("Could not rename " + tmp + " to " + journalFile);
+
+            redundantCount = 0;
+
+        } catch (IOException e) {
+            PHLog.w("Could not rebuild the cache journal: " + e.getMessage());
+
+            closeQuietly(rebuilt);
+            tmp.delete();
+        }
+    }
+
+    public void close() {
+        closeQuietly(writer);
+        writer = null;
+    }
+
+    private void append(String record, boolean flush) {
+        try {
+            if (writer == null)
+                writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), "UTF-8"));
+
+            writer.write(record);
+            writer.write('\n');
+
+            if (flush) writer.flush();
+
+        } catch (IOException e) {
+            // the index in memory is still right so rebuilding the journal from it sets things straight
+            PHLog.w("Could not write to the cache journal: " + e.getMessage());
+
+            close();
+
+            redundantCount = Integer.MAX_VALUE / 2;
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // nothing we can do
+        }
+    }
+}
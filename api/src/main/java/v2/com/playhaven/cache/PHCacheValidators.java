@@ -0,0 +1,94 @@
+package v2.com.playhaven.cache;
+
+/**
+ * What we need to revalidate a cached file with the server: the ETag and Last-Modified
+ * validators for a conditional GET and, from Cache-Control, until when we don't need to ask at all.
+ * Immutable.
+ */
+public class PHCacheValidators {
+
+    private final String etag;
+
+    private final String lastModified;
+
+    /** Until when (ms since the epoch) the file is fresh, 0 if it must always be revalidated */
+    private final long expires;
+
+    public PHCacheValidators(String etag, String lastModified, long expires) {
+        this.etag         = clean(etag);
+        this.lastModified = clean(lastModified);
+        this.expires      = expires;
+    }
+
+    /**
+     * Builds the validators from the response headers (any of which may be null).
+     * Only max-age, no-cache and no-store of the Cache-Control header are looked at.
+     */
+    public static PHCacheValidators fromHeaders(String etag, String lastModified, String cacheControl) {
+        return new PHCacheValidators(etag, lastModified, parseExpires(cacheControl, System.currentTimeMillis()));
+    }
+
+    private static long parseExpires(String cacheControl, long now) {
+        if (cacheControl == null) return 0;
+
+        long expires = 0;
+
+        for (String directive : cacheControl.split(",")) {
+            directive = directive.trim().toLowerCase();
+
+            if (directive.equals("no-cache") || directive.equals("no-store"))
+                return 0;
+
+            if (directive.startsWith("max-age=")) {
+                try {
+                    expires = now + Long.parseLong(directive.substring("max-age=".length()).trim()) * 1000;
+                } catch (NumberFormatException e) {
+                    // as if there was none
+                }
+            }
+        }
+
+        return expires;
+    }
+
+    /** Headers end up in the (tab and line separated) cache journal */
+    private static String clean(String value) {
+        if (value == null) return null;
+
+        value = value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ').trim();
+
+        return (value.length() > 0 ? value : null);
+    }
+
+    public String getETag() {
+        return etag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public long getExpires() {
+        return expires;
+    }
+
+    /** Whether we can use the file without asking the server */
+    public boolean isFresh() {
+        return (System.currentTimeMillis() < expires);
+    }
+
+    /** Whether the server can tell us if the file changed */
+    public boolean canRevalidate() {
+        return (etag != null || lastModified != null);
+    }
+
+    /**
+     * The validators of a 304 response: the server may send updated ones, otherwise the ones we had still hold.
+     * The freshness always comes from the new response.
+     */
+    public PHCacheValidators updatedWith(PHCacheValidators response) {
+        return new PHCacheValidators(response.etag         != null ? response.etag         : etag,
+                                     response.lastModified != null ? response.lastModified : lastModified,
+                                     response.expires);
+    }
+}
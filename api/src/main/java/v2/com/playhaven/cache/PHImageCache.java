@@ -116,7 +116,7 @@ public class PHImageCache {
     public PHContent cacheImages(PHContent content) {
         PHStringUtil.log("Caching images");
 
-        cacheAllImagesInContent(content.context);
+        cacheAllImagesInContent(content.getContext());
 
         // we return the interstitial directly because
         // the caching is "in place" in the interstitial.context JSON
@@ -150,6 +150,7 @@ public class PHImageCache {
         // kick off a new pre-cache request
         PHStringUtil.log("Starting new cache request for image: " + url);
 
+        // the content response just came in so the radio is awake, no point in deferring
         PHPrefetchTask task = new PHPrefetchTask();
         task.setURL(url);
         task.execute();
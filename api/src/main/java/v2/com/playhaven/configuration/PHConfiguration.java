@@ -2,9 +2,23 @@ package v2.com.playhaven.configuration;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import v2.com.playhaven.utils.PHStringUtil;
-
+import android.os.Build;
+import android.util.Xml;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import v2.com.playhaven.utils.PHConnectivityMonitor;
+import v2.com.playhaven.utils.PHLog;
+import v2.com.playhaven.utils.PHThreadUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigInteger;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 /** 
  * Simple class for manging the various device values
@@ -17,6 +31,11 @@ import java.math.BigInteger;
  * and call the appropriate methods.
  *
  * Because we marketplace the settings in the preferences you must always provide a context.
+ *
+ * Reading the preferences on every call is too slow for the request path, so all instances
+ * share an immutable in-memory snapshot of the values. Setters copy it, swap in the copy and
+ * persist on a background thread. The snapshot is dropped whenever the preferences change in this process
+ * and reloaded when another process (e.g. a separate :remote process) has written them.
  * */
 public class PHConfiguration {
 
@@ -29,7 +48,15 @@ public class PHConfiguration {
         Password,
         ShouldPrecache,
         APIUrl,
-        RunningUiTests
+        RunningUiTests,
+        ConnectTimeout,
+        ReadTimeout,
+        MaxAttempts,
+        RetryBaseDelay,
+        RetryMaxDelay,
+        BreakerFailureThreshold,
+        BreakerCooldown,
+        CacheSize
     }
 
 	/////////////////////////////////////////////
@@ -50,6 +77,31 @@ public class PHConfiguration {
     private static final int SHARED_PREF_MODE = Context.MODE_PRIVATE;
 
 
+    /** How long (ms) we wait for a connection unless configured otherwise */
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 10 * 1000;
+
+    /** How long (ms) we wait for data on an open connection unless configured otherwise */
+    public static final int DEFAULT_READ_TIMEOUT_MS = 20 * 1000;
+
+    /** How many times we try an idempotent request unless configured otherwise */
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+    /** The bound (ms) on the delay before the first retry */
+    public static final int DEFAULT_RETRY_BASE_DELAY_MS = 500;
+
+    /** The largest bound (ms) on the delay between retries */
+    public static final int DEFAULT_RETRY_MAX_DELAY_MS = 8 * 1000;
+
+    /** The most bytes we keep in the precache (see v2.com.playhaven.cache.PHCache) */
+    public static final int DEFAULT_CACHE_SIZE_BYTES = 1024 * 1024 * 8;
+
+    /** How many failed requests in a row open the circuit breaker of an endpoint */
+    public static final int DEFAULT_BREAKER_FAILURE_THRESHOLD = 5;
+
+    /** How long (ms) an open circuit breaker fails requests before letting a trial request through */
+    public static final int DEFAULT_BREAKER_COOLDOWN_MS = 30 * 1000;
+
+
 	public static enum ConnectionType {
 	    NO_NETWORK,
 	    MOBILE,
@@ -98,8 +150,14 @@ public class PHConfiguration {
         // turn on caching by default
         setShouldPrecache(context, true);
 
+        // take the device snapshot for the API requests off the main thread
+        PHDeviceInfo.initialize(context);
+
+        // start following the network state
+        PHConnectivityMonitor.getSharedMonitor().start(context);
+
         // output more information about this build
-        PHStringUtil.log("PlayHaven initialized: " + this.getPlayhavenBuildInfo());
+        PHLog.i("PlayHaven initialized: " + this.getPlayhavenBuildInfo());
     }
 
     public String getToken(Context context) {
@@ -123,13 +181,22 @@ public class PHConfiguration {
     }
 
     public int getPrecacheSize() {
-        return 1024 * 1024 * 8;
+        return DEFAULT_CACHE_SIZE_BYTES;
     }
 
     public void setStagingPassword(Context context, String password) {
         setString(context, Config.Password.toString(), password);
     }
 
+    /** The most bytes the precache keeps on disk before evicting the least recently used files */
+    public int getCacheSize(Context context) {
+        return getInt(context, Config.CacheSize, null, getPrecacheSize());
+    }
+
+    public void setCacheSize(Context context, int bytes) {
+        setInt(context, Config.CacheSize, null, bytes);
+    }
+
     /**
      * Gets the raw SDK version but might have "-SNAPSHOT"
      * suffix. If you are talking with the server, you should
@@ -190,23 +257,299 @@ public class PHConfiguration {
         setString(context, Config.RunningUiTests.toString(), Boolean.toString(isRunning));
     }
 
+    /////////////////////////////////////////
+    ///////// Timeouts and Retries //////////
+
+    /*
+     * Each of the network settings below can be set for all requests (pass a null
+     * request type) or for a single request type such as "open" or "content"
+     * (see PHAPIRequest#getMetricsName()). A request type specific value wins.
+     */
+
+    public int getConnectTimeout(Context context, String requestType) {
+        return getInt(context, Config.ConnectTimeout, requestType, DEFAULT_CONNECT_TIMEOUT_MS);
+    }
+
+    public void setConnectTimeout(Context context, String requestType, int millis) {
+        setInt(context, Config.ConnectTimeout, requestType, millis);
+    }
+
+    public int getReadTimeout(Context context, String requestType) {
+        return getInt(context, Config.ReadTimeout, requestType, DEFAULT_READ_TIMEOUT_MS);
+    }
+
+    public void setReadTimeout(Context context, String requestType, int millis) {
+        setInt(context, Config.ReadTimeout, requestType, millis);
+    }
+
+    /** The total number of attempts (including the first) for idempotent requests */
+    public int getMaxAttempts(Context context, String requestType) {
+        return getInt(context, Config.MaxAttempts, requestType, DEFAULT_MAX_ATTEMPTS);
+    }
+
+    public void setMaxAttempts(Context context, String requestType, int attempts) {
+        setInt(context, Config.MaxAttempts, requestType, attempts);
+    }
+
+    public int getRetryBaseDelay(Context context, String requestType) {
+        return getInt(context, Config.RetryBaseDelay, requestType, DEFAULT_RETRY_BASE_DELAY_MS);
+    }
+
+    public void setRetryBaseDelay(Context context, String requestType, int millis) {
+        setInt(context, Config.RetryBaseDelay, requestType, millis);
+    }
+
+    public int getRetryMaxDelay(Context context, String requestType) {
+        return getInt(context, Config.RetryMaxDelay, requestType, DEFAULT_RETRY_MAX_DELAY_MS);
+    }
+
+    public void setRetryMaxDelay(Context context, String requestType, int millis) {
+        setInt(context, Config.RetryMaxDelay, requestType, millis);
+    }
+
+    /** How many failed requests in a row open the circuit breaker (see PHCircuitBreaker) */
+    public int getBreakerFailureThreshold(Context context, String requestType) {
+        return getInt(context, Config.BreakerFailureThreshold, requestType, DEFAULT_BREAKER_FAILURE_THRESHOLD);
+    }
+
+    public void setBreakerFailureThreshold(Context context, String requestType, int failures) {
+        setInt(context, Config.BreakerFailureThreshold, requestType, failures);
+    }
+
+    public int getBreakerCooldown(Context context, String requestType) {
+        return getInt(context, Config.BreakerCooldown, requestType, DEFAULT_BREAKER_COOLDOWN_MS);
+    }
+
+    public void setBreakerCooldown(Context context, String requestType, int millis) {
+        setInt(context, Config.BreakerCooldown, requestType, millis);
+    }
+
+    private static String getKey(Config config, String requestType) {
+        return (requestType == null ? config.toString() : config.toString() + "." + requestType);
+    }
+
+    private void setInt(Context context, Config config, String requestType, int value) {
+        setString(context, getKey(config, requestType), Integer.toString(value));
+    }
+
+    /** Looks for the request type specific value, then the global one and finally uses the default */
+    private int getInt(Context context, Config config, String requestType, int defaultValue) {
+        String value = null;
+
+        if (requestType != null)
+            value = getString(context, getKey(config, requestType));
+
+        if (value == null)
+            value = getString(context, getKey(config, null));
+
+        if (value == null) return defaultValue;
+
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
     private void setString(Context context, String key, String value) {
         Context appContext = context.getApplicationContext(); // make sure we have an app context
 
         SharedPreferences prefs = appContext.getSharedPreferences(SHARED_PREF_NAME, SHARED_PREF_MODE);
-        SharedPreferences.Editor editor = prefs.edit();
 
-        editor.putString(key, value);
+        synchronized (PHConfiguration.class) {
+            Snapshot current = getSnapshot(appContext);
 
-        editor.commit();
+            // copy on write so readers never see a half updated snapshot
+            HashMap<String, String> values = new HashMap<String, String>(current.values);
+            values.put(key, value);
+
+            // until the write has landed we can't tell it apart from a write by another process
+            final Snapshot written = new Snapshot(values, current.prefsFile, WRITE_PENDING);
+
+            snapshot = written;
+
+            final SharedPreferences.Editor editor = prefs.edit().putString(key, value);
+
+            // writes are committed in order on our own thread so that we know when each one has landed
+            prefsWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    editor.commit();
+
+                    recordWrite(written);
+                }
+            });
+        }
     }
 
     private String getString(Context context, String key) {
-        Context appContext = context.getApplicationContext(); // make sure we have an app context
+        return getSnapshot(context).values.get(key);
+    }
 
+    /////////////////////////////////////////
+    ///////////// Snapshot //////////////////
 
-        SharedPreferences prefs = appContext.getSharedPreferences(SHARED_PREF_NAME, SHARED_PREF_MODE);
+    /** How often (ms) we look at the preferences file for writes from other processes */
+    private static final long CROSS_PROCESS_CHECK_MS = 1000;
+
+    private static volatile Snapshot snapshot;
+
+    private static volatile long lastCrossProcessCheck;
+
+    /** {@link Snapshot#lastModified} while our own write of it is still on its way to disk */
+    private static final long WRITE_PENDING = -1;
+
+    /** Commits the preferences (in the order they were set) */
+    private static final ExecutorService prefsWriter = PHThreadUtils.newSerialExecutor("PlayHaven-Preferences");
+
+    /** Drops the snapshot when the preferences are changed in this process (held here since the preferences only keep a weak reference) */
+    private static SharedPreferences.OnSharedPreferenceChangeListener changeListener;
+
+    /** An immutable copy of all the values in the preferences */
+    private static class Snapshot {
+        private final Map<String, String> values;
+
+        private final File prefsFile;
+
+        /** When the preferences file was last written as far as this snapshot knows */
+        private final long lastModified;
+
+        public Snapshot(Map<String, String> values, File prefsFile) {
+            this(values, prefsFile, (prefsFile != null ? prefsFile.lastModified() : 0));
+        }
+
+        public Snapshot(Map<String, String> values, File prefsFile, long lastModified) {
+            this.values       = Collections.unmodifiableMap(values);
+            this.prefsFile    = prefsFile;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /** Our write of the given snapshot is on disk, so from now on any other change to the file is someone else's */
+    private static void recordWrite(Snapshot written) {
+        synchronized (PHConfiguration.class) {
+            if (snapshot == written)
+                snapshot = new Snapshot(written.values, written.prefsFile);
+        }
+    }
+
+    private static Snapshot getSnapshot(Context context) {
+        Snapshot current = snapshot;
+
+        if (current != null && ! changedByOtherProcess(current))
+            return current;
+
+        synchronized (PHConfiguration.class) {
+            if (snapshot == current)
+                snapshot = loadSnapshot(context.getApplicationContext(), current != null);
+
+            return snapshot;
+        }
+    }
+
+    /** Cheap most of the time: we only look at the file once every {@link #CROSS_PROCESS_CHECK_MS} */
+    private static boolean changedByOtherProcess(Snapshot current) {
+        if (current.prefsFile == null || current.lastModified == WRITE_PENDING) return false;
+
+        long now = System.currentTimeMillis();
+
+        if (now - lastCrossProcessCheck < CROSS_PROCESS_CHECK_MS) return false;
+
+        lastCrossProcessCheck = now;
+
+        return current.prefsFile.lastModified() != current.lastModified;
+    }
+
+    private static Snapshot loadSnapshot(Context appContext, boolean fromDisk) {
+        // MODE_MULTI_PROCESS makes the preferences re-read the file if another process changed it
+        SharedPreferences prefs = appContext.getSharedPreferences(SHARED_PREF_NAME,
+                                                                  fromDisk ? SHARED_PREF_MODE | Context.MODE_MULTI_PROCESS : SHARED_PREF_MODE);
+
+        if (changeListener == null) {
+            changeListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                    invalidate();
+                }
+            };
+
+            prefs.registerOnSharedPreferenceChangeListener(changeListener);
+        }
+
+        File prefsFile = null;
+
+        if (appContext.getApplicationInfo() != null && appContext.getApplicationInfo().dataDir != null)
+            prefsFile = new File(appContext.getApplicationInfo().dataDir, "shared_prefs/" + SHARED_PREF_NAME + ".xml");
+
+        // the mtime goes first so that a write landing while we read shows up as a change next time
+        long lastModified = (prefsFile != null ? prefsFile.lastModified() : 0);
+
+        HashMap<String, String> values = null;
+
+        // MODE_MULTI_PROCESS only exists since Honeycomb, before that the preferences never re-read the file
+        if (fromDisk && prefsFile != null && Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB)
+            values = readPrefsFile(prefsFile);
+
+        if (values == null) {
+            values = new HashMap<String, String>();
+
+            for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+                if (entry.getValue() instanceof String)
+                    values.put(entry.getKey(), (String) entry.getValue());
+            }
+        }
+
+        return new Snapshot(values, prefsFile, lastModified);
+    }
+
+    /**
+     * Reads the string values straight from the preferences file (the format SharedPreferences writes).
+     * @return null if the file can't be read, in which case we go with what the preferences have in memory
+     */
+    private static HashMap<String, String> readPrefsFile(File prefsFile) {
+        InputStream in = null;
+
+        try {
+            in = new FileInputStream(prefsFile);
+
+            XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(in, "UTF-8");
+
+            HashMap<String, String> values = new HashMap<String, String>();
+
+            for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+                if (event != XmlPullParser.START_TAG || ! "string".equals(parser.getName())) continue;
+
+                String name = parser.getAttributeValue(null, "name");
+
+                if (name != null)
+                    values.put(name, parser.nextText());
+            }
+
+            return values;
+
+        } catch (IOException e) {
+            return null;
+
+        } catch (XmlPullParserException e) {
+            PHLog.w("Could not parse the preferences file: " + e.getMessage());
+            return null;
+
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing we can do
+                }
+            }
+        }
+    }
 
-        return prefs.getString(key, null);
+    /** Drops the in-memory snapshot so that the next access reads the preferences again */
+    public static void invalidate() {
+        synchronized (PHConfiguration.class) {
+            snapshot = null;
+        }
     }
 }
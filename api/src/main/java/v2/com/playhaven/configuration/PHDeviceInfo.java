@@ -0,0 +1,199 @@
+package v2.com.playhaven.configuration;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.res.Configuration;
+import android.os.Build;
+import android.provider.Settings;
+import android.util.DisplayMetrics;
+import v2.com.playhaven.requests.crashreport.PHCrashReport;
+import v2.com.playhaven.utils.PHStringUtil;
+import v2.com.playhaven.utils.PHThreadUtils;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An immutable snapshot of the device values every API request sends along
+ * (device id, app, hardware, os, screen, locale, ...). Reading these means going through
+ * the ContentResolver, PackageManager and Resources, so rather than doing it on every
+ * request we take one process-wide snapshot (see {@link #getSnapshot(Context)}).
+ *
+ * The snapshot is taken on a (single) background thread when the SDK is initialized (see {@link #initialize(Context)})
+ * and retaken only when a configuration (orientation, screen) or locale change is broadcast.
+ * Besides the raw values we keep them pre-encoded as a query string (see {@link #getEncodedQuery()})
+ * so that requests only need to encode their own parameters.
+ *
+ * The token, nonce, signature and connection type are not part of the snapshot since
+ * they change between requests.
+ */
+public class PHDeviceInfo {
+
+    private static volatile PHDeviceInfo snapshot;
+
+    private static BroadcastReceiver changeReceiver;
+
+    /** Takes the snapshots one at a time so an older one can never replace a newer one */
+    private static final ExecutorService refresher = PHThreadUtils.newSerialExecutor("PlayHaven-DeviceInfo");
+
+    /** Whether a refresh is queued and hasn't started yet (rotating fires a burst of broadcasts) */
+    private static final AtomicBoolean refreshQueued = new AtomicBoolean();
+
+    private final HashMap<String, String> params;
+
+    private final String encodedQuery;
+
+    private final String device;
+
+    private PHDeviceInfo(Context context) {
+        PHConfiguration config = new PHConfiguration();
+
+        // get the device id
+        String device = Settings.System.getString(context.getContentResolver(), Settings.Secure.ANDROID_ID);
+
+        if (device == null)
+            device = "null";
+
+        String appId, appVersion;
+
+        try {
+            PackageInfo pinfo = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
+
+            appId       = pinfo.packageName;
+
+            appVersion  = pinfo.versionName;
+
+        } catch (PackageManager.NameNotFoundException e) {
+            // If it doesn't work, leave this field off
+            appId = "";
+
+            appVersion = "";
+        }
+
+        DisplayMetrics dm = context.getResources().getDisplayMetrics();
+
+        HashMap<String, String> params = new HashMap<String, String>();
+
+        params.put("device",        device);
+        params.put("app",           appId);
+        params.put("app_version",   appVersion);
+        params.put("hardware",      Build.MODEL);
+        params.put("os",            String.format("%s %s", Build.VERSION.RELEASE, Build.VERSION.SDK_INT));
+        params.put("idiom",         String.valueOf(context.getResources().getConfiguration().screenLayout & Configuration.SCREENLAYOUT_SIZE_MASK));
+        params.put("width",         String.valueOf(dm.widthPixels));
+        params.put("height",        String.valueOf(dm.heightPixels));
+        params.put("sdk_version",   config.getCleanSDKVersion());
+        params.put("sdk_platform",  "android");
+        params.put("orientation",   "0"); // TODO: use actual orientation?
+        params.put("dpi",           String.valueOf(dm.densityDpi));
+        params.put("languages",     Locale.getDefault().getLanguage());
+
+        this.device       = device;
+        this.params       = params;
+        this.encodedQuery = PHStringUtil.createQuery(params);
+    }
+
+    /////////////////////////////////////////////////
+    /////////////// Accessors ///////////////////////
+
+    /** The device id (ANDROID_ID or "null") which is also part of the signature */
+    public String getDevice() {
+        return device;
+    }
+
+    /** The device parameters (read only) */
+    public Map<String, String> getParams() {
+        return Collections.unmodifiableMap(params);
+    }
+
+    /** {@link #getParams()} already encoded as a query string (without a leading '?' or '&') */
+    public String getEncodedQuery() {
+        return encodedQuery;
+    }
+
+    /////////////////////////////////////////////////
+    /////////////// Snapshot ////////////////////////
+
+    /**
+     * Gets the current snapshot. If the background snapshot isn't ready yet
+     * we take it right here (once) rather than wait.
+     */
+    public static PHDeviceInfo getSnapshot(Context context) {
+        PHDeviceInfo current = snapshot;
+
+        if (current != null) return current;
+
+        synchronized (PHDeviceInfo.class) {
+            if (snapshot == null)
+                snapshot = new PHDeviceInfo(context.getApplicationContext());
+
+            return snapshot;
+        }
+    }
+
+    /**
+     * Takes the snapshot on a background thread and starts listening for the
+     * configuration and locale changes which invalidate it. Safe to call more than once.
+     */
+    public static void initialize(Context context) {
+        final Context appContext = context.getApplicationContext();
+
+        synchronized (PHDeviceInfo.class) {
+            if (changeReceiver == null) {
+                changeReceiver = new BroadcastReceiver() {
+                    @Override
+                    public void onReceive(Context context, Intent intent) {
+                        PHStringUtil.log("Device configuration changed, refreshing device info");
+
+                        refresh(appContext);
+                    }
+                };
+
+                IntentFilter filter = new IntentFilter(Intent.ACTION_CONFIGURATION_CHANGED);
+                filter.addAction(Intent.ACTION_LOCALE_CHANGED);
+
+                appContext.registerReceiver(changeReceiver, filter);
+            }
+        }
+
+        if (snapshot == null)
+            refresh(appContext);
+    }
+
+    /** Retakes the snapshot in the background. Requests keep using the old one until it's done. */
+    private static void refresh(final Context appContext) {
+        // the queued refresh will see this change as well
+        if ( ! refreshQueued.compareAndSet(false, true)) return;
+
+        refresher.execute(new Runnable() {
+            @Override
+            public void run() {
+                // changes from now on need another refresh
+                refreshQueued.set(false);
+
+                try {
+                    PHDeviceInfo fresh = new PHDeviceInfo(appContext);
+
+                    synchronized (PHDeviceInfo.class) {
+                        snapshot = fresh;
+                    }
+                } catch (Exception e) { // swallow all exceptions
+                    PHCrashReport.reportCrash(e, "PHDeviceInfo - refresh", PHCrashReport.Urgency.low);
+                }
+            }
+        });
+    }
+
+    /** Drops the snapshot so the next request takes a fresh one (mostly for unit testing) */
+    public static synchronized void invalidate() {
+        snapshot = null;
+    }
+}
@@ -6,7 +6,7 @@ import java.util.Hashtable;
 import android.net.Uri;
 import android.webkit.WebView;
 import v2.com.playhaven.interstitial.jsbridge.handlers.AbstractHandler;
-import v2.com.playhaven.utils.PHStringUtil;
+import v2.com.playhaven.utils.PHLog;
 import org.json.JSONObject;
 
 /**
@@ -137,7 +137,9 @@ public class PHJSBridge {
      * @param url the url we are checking to see if a route exists.
     */
 	public boolean hasRoute(String url) {
-        PHStringUtil.log("Asking about route: " + url);
+        if (PHLog.isLoggable(PHLog.Level.Verbose))
+            PHLog.v("Asking about route: " + url);
+
 		return routers.containsKey(stripQuery(url));
 	}
 	
@@ -168,16 +170,27 @@ public class PHJSBridge {
      * @param error the error (if any) we wish to send to the content templates.
      */
     public void sendMessageToWebview(String callback, JSONObject payload, JSONObject error) {
+        sendRawMessageToWebview(callback, (payload != null ? payload.toString() : null), error);
+    }
+
+    /**
+     * Sends a message to the content templates in the webview.
+     * @param callback the message we wish to send to the webview content template.
+     * @param payloadJSON the additional data of the message, already as JSON text.
+     * @param error the error (if any) we wish to send to the content templates.
+     */
+    public void sendRawMessageToWebview(String callback, String payloadJSON, JSONObject error) {
         if ( ! hasWebviewAttached()) return;
 
         String callbackCommand = String.format(
                 JAVASCRIPT_CALLBACK_TEMPLATE,
                 (callback != null ? callback : "null"),
-                (payload != null ? payload.toString() : "null"),
+                (payloadJSON != null ? payloadJSON : "null"),
                 (error != null ? error.toString() : "null")
         );
 
-        PHStringUtil.log("sending javascript callback to WebView: '" + callbackCommand);
+        if (PHLog.isLoggable(PHLog.Level.Debug))
+            PHLog.d("sending javascript callback to WebView: '" + callbackCommand);
         webview.loadUrl(callbackCommand);
     }
 
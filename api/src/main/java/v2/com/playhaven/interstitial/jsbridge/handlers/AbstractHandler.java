@@ -99,4 +99,14 @@ public abstract class AbstractHandler {
         bridge.sendMessageToWebview(callback, payload, error);
     }
 
+    /**
+     * Same as {@link #sendResponseToWebview(String, JSONObject, JSONObject)} but with
+     * a payload which is already JSON text.
+     */
+    protected void sendRawResponseToWebview(String callback, String payloadJSON, JSONObject error) {
+        if (bridge == null) return;
+
+        bridge.sendRawMessageToWebview(callback, payloadJSON, error);
+    }
+
 }
@@ -32,10 +32,10 @@ public class LoadContextHandler extends AbstractHandler {
         // sends the new version
         bridge.runJavascript(javascriptCommand);
 
-        // now provide the webview with the appropriate context
-        JSONObject downloadedContent = contentDisplayer.get().getContent().context;
+        // now provide the webview with the appropriate context (as is, no need to parse it)
+        String downloadedContent = contentDisplayer.get().getContent().getContextJSON();
 
-        sendResponseToWebview(bridge.getCurrentQueryVar("callback"), downloadedContent, null);
+        sendRawResponseToWebview(bridge.getCurrentQueryVar("callback"), downloadedContent, null);
 
 
     }
@@ -87,13 +87,12 @@ public class PurchaseHandler extends AbstractHandler {
         PHConfiguration config = new PHConfiguration();
 
         // check the signature by generating our own
-        String generatedSig		  = PHStringUtil.hexDigest(
-                String.format("%s:%s:%s:%s:%s:%s", productID,
+        String generatedSig		  = PHStringUtil.hexSignature(productID,
                         name,
                         PHPurchase.DEFAULT_QUANTITY, // we fix the value of quantity (since it's meaningless)
                         contentDisplayer.get().getDeviceID(),
                         receipt,
-                        contentDisplayer.get().getSecret())
+                        contentDisplayer.get().getSecret()
         );
 
         PHStringUtil.log("Checking purchase signature:  " + signature + " against: " + generatedSig);
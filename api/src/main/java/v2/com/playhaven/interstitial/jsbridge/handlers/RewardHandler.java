@@ -82,13 +82,12 @@ public class RewardHandler extends AbstractHandler {
 
         PHConfiguration config = new PHConfiguration();
 
-        String generatedSig		= PHStringUtil.hexDigest(String.format(
-                "%s:%s:%s:%s:%s",
+        String generatedSig		= PHStringUtil.hexSignature(
                 reward,
                 quantity,
                 device_id,
                 receipt,
-                contentDisplayer.get().getSecret())
+                contentDisplayer.get().getSecret()
         );
 
         PHStringUtil.log("Checking reward signature:  " + signature + " against: " + generatedSig);
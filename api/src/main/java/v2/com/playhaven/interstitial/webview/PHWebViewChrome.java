@@ -8,7 +8,7 @@ import android.net.Uri;
 import android.webkit.ConsoleMessage;
 import android.webkit.WebChromeClient;
 import v2.com.playhaven.requests.crashreport.PHCrashReport;
-import v2.com.playhaven.utils.PHStringUtil;
+import v2.com.playhaven.utils.PHLog;
 
 /**
  * Extends WebChromeClient just for logging purposes. (have to if greater
@@ -25,9 +25,10 @@ public class PHWebViewChrome extends WebChromeClient {
                 fname = Uri.parse(consoleMessage.sourceId()).getLastPathSegment();
             }
 
-            PHStringUtil.log("Javascript: " + consoleMessage.message()
-                    + " at line (" + fname + ") :"
-                    + consoleMessage.lineNumber());
+            if (PHLog.isLoggable(PHLog.Level.Debug))
+                PHLog.d("Javascript: " + consoleMessage.message()
+                        + " at line (" + fname + ") :"
+                        + consoleMessage.lineNumber());
 
         } catch (Exception e) { // swallow all exceptions
             PHCrashReport.reportCrash(e, "PHWebViewChrome - onConsoleMessage", PHCrashReport.Urgency.low);
@@ -9,7 +9,7 @@ import v2.com.playhaven.interstitial.requestbridge.bridges.ContentRequestToInter
 import v2.com.playhaven.requests.crashreport.PHCrashReport;
 import v2.com.playhaven.interstitial.jsbridge.PHJSBridge;
 import v2.com.playhaven.model.PHContent;
-import v2.com.playhaven.utils.PHStringUtil;
+import v2.com.playhaven.utils.PHLog;
 
 import java.lang.ref.WeakReference;
 
@@ -110,7 +110,7 @@ public class PHWebViewClient extends WebViewClient {
 
             description = String.format("Error loading template at url: %s Code: %d Description: %s", failingUrl, errorCode, description);
 
-            PHStringUtil.log(description);
+            PHLog.w(description);
 
             // inform the listener of the problem
             Bundle message = new Bundle();
@@ -147,7 +147,8 @@ public class PHWebViewClient extends WebViewClient {
      * @return true if a route exists and we have called the appropriate handler, false otherwise.
      */
     private boolean routePlayhavenCallback(String url) {
-        PHStringUtil.log("Received webview callback: " + url);
+        if (PHLog.isLoggable(PHLog.Level.Debug))
+            PHLog.d("Received webview callback: " + url);
 
         try {
             if (bridge.hasRoute(url)) {
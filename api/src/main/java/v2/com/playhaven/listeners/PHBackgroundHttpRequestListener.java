@@ -0,0 +1,14 @@
+package v2.com.playhaven.listeners;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Optional extension of {@link PHHttpRequestListener} for listeners which wish to do
+ * their heavy lifting (decoding, JSON parsing, building models) on the background thread
+ * of the {@link v2.com.playhaven.requests.base.PHAsyncRequest}. The regular
+ * {@link #onHttpRequestSucceeded(ByteBuffer, int)} callback is still delivered on
+ * the main thread afterwards.
+ */
+public interface PHBackgroundHttpRequestListener extends PHHttpRequestListener {
+	public void onHttpRequestSucceededInBackground(ByteBuffer response, int responseCode);
+}
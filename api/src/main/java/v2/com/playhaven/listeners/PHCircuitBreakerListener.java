@@ -0,0 +1,12 @@
+package v2.com.playhaven.listeners;
+
+import v2.com.playhaven.requests.base.PHCircuitBreaker;
+
+/**
+ * Implement this interface and register with {@link v2.com.playhaven.metrics.PHRequestMetrics}
+ * to hear when the circuit breaker of an API endpoint opens or closes (see {@link PHCircuitBreaker}).
+ * May be called on any thread, so keep it quick.
+ */
+public interface PHCircuitBreakerListener {
+	public void onCircuitBreakerStateChanged(String endpoint, PHCircuitBreaker.State from, PHCircuitBreaker.State to);
+}
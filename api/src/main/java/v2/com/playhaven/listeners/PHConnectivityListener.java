@@ -0,0 +1,11 @@
+package v2.com.playhaven.listeners;
+
+import v2.com.playhaven.configuration.PHConfiguration;
+
+/**
+ * Implement this interface and register with {@link v2.com.playhaven.utils.PHConnectivityMonitor}
+ * to hear about network changes. Called on the main thread.
+ */
+public interface PHConnectivityListener {
+	public void onConnectivityChanged(PHConfiguration.ConnectionType type, boolean isConnected);
+}
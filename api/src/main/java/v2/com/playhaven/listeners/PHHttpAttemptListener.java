@@ -0,0 +1,20 @@
+package v2.com.playhaven.listeners;
+
+import v2.com.playhaven.model.PHError;
+
+/**
+ * Optionally implemented by a {@link PHHttpRequestListener} to hear about every
+ * attempt a {@link v2.com.playhaven.requests.base.PHAsyncRequest} makes, including
+ * the ones which are retried (see {@link v2.com.playhaven.requests.base.PHRetryPolicy}).
+ * Called on the main thread before the final success or failure callback.
+ */
+public interface PHHttpAttemptListener {
+	/**
+	 * @param attempt the attempt number (starting at 1)
+	 * @param responseCode the HTTP status or -1 if we never got a response
+	 * @param error why the attempt failed or null if we got a response
+	 * @param elapsedMillis how long the attempt took
+	 * @param willRetry whether or not another attempt will follow
+	 */
+	public void onHttpAttempt(int attempt, int responseCode, PHError error, long elapsedMillis, boolean willRetry);
+}
@@ -0,0 +1,12 @@
+package v2.com.playhaven.listeners;
+
+import v2.com.playhaven.metrics.PHRequestTiming;
+
+/**
+ * Implement this interface and register with {@link v2.com.playhaven.metrics.PHRequestMetrics}
+ * to receive the phase timings of every request the SDK makes (for instance to forward
+ * them to your own telemetry). Called on the main thread, so keep it quick.
+ */
+public interface PHRequestMetricsListener {
+	public void onRequestTimed(PHRequestTiming timing);
+}
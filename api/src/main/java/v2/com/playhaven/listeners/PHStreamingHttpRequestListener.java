@@ -0,0 +1,20 @@
+package v2.com.playhaven.listeners;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Extension of {@link PHBackgroundHttpRequestListener} for listeners which can decode
+ * the response directly off the network stream instead of having the
+ * {@link v2.com.playhaven.requests.base.PHAsyncRequest} buffer the whole body first.
+ * Only used when the request has been put in streaming mode
+ * (see {@link v2.com.playhaven.requests.base.PHAsyncRequest#setStreamResponse(boolean)}).
+ */
+public interface PHStreamingHttpRequestListener extends PHBackgroundHttpRequestListener {
+
+	/**
+	 * Called on the background thread with the raw response body. The stream is closed
+	 * by the caller afterwards. An {@link IOException} is treated as a network failure.
+	 */
+	public void onHttpResponseStreamInBackground(InputStream response, int responseCode) throws IOException;
+}
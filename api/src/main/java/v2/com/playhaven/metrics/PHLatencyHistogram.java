@@ -0,0 +1,93 @@
+package v2.com.playhaven.metrics;
+
+/**
+ * A small fixed-bucket histogram of latencies in milliseconds. Recording is
+ * cheap and allocation free so it can be done for every request.
+ */
+public class PHLatencyHistogram {
+
+    /** The (inclusive) upper bound of each bucket. The last bucket catches everything above. */
+    private static final long[] BUCKET_BOUNDS = {
+            5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, Long.MAX_VALUE
+    };
+
+    private final long[] counts = new long[BUCKET_BOUNDS.length];
+
+    private long count;
+
+    private long sum;
+
+    private long max;
+
+    public synchronized void record(long millis) {
+        if (millis < 0) millis = 0;
+
+        int bucket = 0;
+        while (millis > BUCKET_BOUNDS[bucket])
+            bucket++;
+
+        counts[bucket]++;
+        count++;
+        sum += millis;
+
+        if (millis > max) max = millis;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getMax() {
+        return max;
+    }
+
+    public synchronized double getMean() {
+        return (count == 0 ? 0 : (double) sum / count);
+    }
+
+    /**
+     * Gets an approximation of the given percentile, namely the upper bound of the
+     * bucket it falls in (or the max if it falls in the last bucket).
+     * @param percentile between 0 and 100
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (count == 0) return 0;
+
+        long rank = (long) Math.ceil(count * (percentile / 100.0));
+        long seen = 0;
+
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+
+            if (seen >= rank)
+                return Math.min(BUCKET_BOUNDS[i], max);
+        }
+
+        return max;
+    }
+
+    /** The upper bound of each bucket (the last one is {@link Long#MAX_VALUE}) */
+    public static long[] getBucketBounds() {
+        return BUCKET_BOUNDS.clone();
+    }
+
+    /** A copy of the count in each bucket, matching {@link #getBucketBounds()} */
+    public synchronized long[] getBucketCounts() {
+        return counts.clone();
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < counts.length; i++)
+            counts[i] = 0;
+
+        count = 0;
+        sum   = 0;
+        max   = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("count=%d mean=%.1f p50=%d p90=%d max=%d",
+                             count, getMean(), getPercentile(50), getPercentile(90), max);
+    }
+}
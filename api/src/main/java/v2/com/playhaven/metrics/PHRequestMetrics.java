@@ -0,0 +1,136 @@
+package v2.com.playhaven.metrics;
+
+import v2.com.playhaven.listeners.PHCircuitBreakerListener;
+import v2.com.playhaven.listeners.PHRequestMetricsListener;
+import v2.com.playhaven.requests.base.PHCircuitBreaker;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Process-wide registry of request latencies. Every finished request reports its
+ * {@link PHRequestTiming} here; we keep a {@link PHLatencyHistogram} per request type
+ * and {@link PHRequestTiming.Phase} and pass the raw timing on to any registered
+ * {@link PHRequestMetricsListener}.
+ *
+ * Request types are the short names used by the requests themselves:
+ * "open", "content", "badge", "iap", "subcontent", "crash", "prefetch" and "http"
+ * for plain {@link v2.com.playhaven.requests.base.PHAsyncRequest}s.
+ *
+ * We also count the state changes of the {@link PHCircuitBreaker}s per endpoint and pass them on
+ * to any registered {@link PHCircuitBreakerListener}.
+ *
+ * This class is a singleton, see {@link #getSharedMetrics()}.
+ */
+public class PHRequestMetrics {
+
+    private static PHRequestMetrics sharedMetrics;
+
+    /** request type -> one histogram per phase */
+    private final HashMap<String, PHLatencyHistogram[]> histograms = new HashMap<String, PHLatencyHistogram[]>();
+
+    private final CopyOnWriteArrayList<PHRequestMetricsListener> listeners = new CopyOnWriteArrayList<PHRequestMetricsListener>();
+
+    /** endpoint -> how often its breaker went into each state */
+    private final HashMap<String, int[]> breakerTransitions = new HashMap<String, int[]>();
+
+    private final CopyOnWriteArrayList<PHCircuitBreakerListener> breakerListeners = new CopyOnWriteArrayList<PHCircuitBreakerListener>();
+
+    public static synchronized PHRequestMetrics getSharedMetrics() {
+        if (sharedMetrics == null)
+            sharedMetrics = new PHRequestMetrics();
+
+        return sharedMetrics;
+    }
+
+    public void addListener(PHRequestMetricsListener listener) {
+        if (listener != null)
+            listeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(PHRequestMetricsListener listener) {
+        listeners.remove(listener);
+    }
+
+    /** Records a finished request and notifies the listeners. */
+    public void record(PHRequestTiming timing) {
+        if (timing == null || timing.getRequestType() == null) return;
+
+        PHLatencyHistogram[] phases = getHistograms(timing.getRequestType());
+
+        for (PHRequestTiming.Phase phase : PHRequestTiming.Phase.values())
+            phases[phase.ordinal()].record(timing.getDuration(phase));
+
+        for (PHRequestMetricsListener listener : listeners)
+            listener.onRequestTimed(timing);
+    }
+
+    public void addBreakerListener(PHCircuitBreakerListener listener) {
+        if (listener != null)
+            breakerListeners.addIfAbsent(listener);
+    }
+
+    public void removeBreakerListener(PHCircuitBreakerListener listener) {
+        breakerListeners.remove(listener);
+    }
+
+    /** Records a circuit breaker state change and notifies the breaker listeners. */
+    public void recordBreakerTransition(String endpoint, PHCircuitBreaker.State from, PHCircuitBreaker.State to) {
+        synchronized (this) {
+            int[] counts = breakerTransitions.get(endpoint);
+
+            if (counts == null) {
+                counts = new int[PHCircuitBreaker.State.values().length];
+                breakerTransitions.put(endpoint, counts);
+            }
+
+            counts[to.ordinal()]++;
+        }
+
+        for (PHCircuitBreakerListener listener : breakerListeners)
+            listener.onCircuitBreakerStateChanged(endpoint, from, to);
+    }
+
+    /** How often the breaker of the given endpoint went into the given state */
+    public synchronized int getBreakerTransitionCount(String endpoint, PHCircuitBreaker.State to) {
+        int[] counts = breakerTransitions.get(endpoint);
+
+        return (counts != null ? counts[to.ordinal()] : 0);
+    }
+
+    /**
+     * Gets the histogram for the given request type and phase.
+     * @return the histogram (empty if we haven't seen that request type yet)
+     */
+    public PHLatencyHistogram getHistogram(String requestType, PHRequestTiming.Phase phase) {
+        return getHistograms(requestType)[phase.ordinal()];
+    }
+
+    /** Gets the request types we have recorded so far */
+    public synchronized Set<String> getRequestTypes() {
+        return new HashSet<String>(histograms.keySet());
+    }
+
+    /** Clears all recorded histograms (the listeners stay registered) */
+    public synchronized void reset() {
+        histograms.clear();
+        breakerTransitions.clear();
+    }
+
+    private synchronized PHLatencyHistogram[] getHistograms(String requestType) {
+        PHLatencyHistogram[] phases = histograms.get(requestType);
+
+        if (phases == null) {
+            phases = new PHLatencyHistogram[PHRequestTiming.Phase.values().length];
+
+            for (int i = 0; i < phases.length; i++)
+                phases[i] = new PHLatencyHistogram();
+
+            histograms.put(requestType, phases);
+        }
+
+        return phases;
+    }
+}
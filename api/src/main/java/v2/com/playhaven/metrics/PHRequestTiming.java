@@ -0,0 +1,90 @@
+package v2.com.playhaven.metrics;
+
+/**
+ * The time a single request spent in each {@link Phase} of the request pipeline.
+ * Requests fill this in as they move along and hand it to {@link PHRequestMetrics}
+ * once the result has been delivered on the main thread.
+ *
+ * In streaming mode (see {@link v2.com.playhaven.requests.base.PHAsyncRequest#setStreamResponse(boolean)})
+ * the body is decoded while it downloads so that time is reported as {@link Phase#Parse}.
+ */
+public class PHRequestTiming {
+
+    public enum Phase {
+        /** Waiting in the {@link v2.com.playhaven.requests.base.PHRequestScheduler} queue */
+        QueueWait,
+        /** Opening the socket (and TLS handshake). Zero when a pooled connection was reused. */
+        Connect,
+        /** Sending the request and waiting for the response headers, not counting {@link #Connect} */
+        FirstByte,
+        /** Reading the response body */
+        Download,
+        /** Decoding, parsing and building models on the background thread */
+        Parse,
+        /** From posting the result to the main thread until the listeners have been called */
+        Delivery
+    }
+
+    /** The timing of the request running on the current thread (if any) */
+    private static final ThreadLocal<PHRequestTiming> current = new ThreadLocal<PHRequestTiming>();
+
+    private final String requestType;
+
+    private final long[] durations = new long[Phase.values().length];
+
+    public PHRequestTiming(String requestType) {
+        this.requestType = requestType;
+    }
+
+    /** Gets the timing of the request running on this thread so low level code (such as sockets) can report to it */
+    public static PHRequestTiming getCurrent() {
+        return current.get();
+    }
+
+    public static void setCurrent(PHRequestTiming timing) {
+        if (timing == null)
+            current.remove();
+        else
+            current.set(timing);
+    }
+
+    /** A monotonic timestamp in milliseconds to measure phases with */
+    public static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /** Adds to the time spent in the given phase (phases can be entered more than once, e.g. redirects) */
+    public synchronized void add(Phase phase, long millis) {
+        if (millis > 0)
+            durations[phase.ordinal()] += millis;
+    }
+
+    public synchronized long getDuration(Phase phase) {
+        return durations[phase.ordinal()];
+    }
+
+    /** The sum of all phases */
+    public synchronized long getTotal() {
+        long total = 0;
+
+        for (long duration : durations)
+            total += duration;
+
+        return total;
+    }
+
+    /** The request type, such as "open" or "content" */
+    public String getRequestType() {
+        return requestType;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder(requestType);
+
+        for (Phase phase : Phase.values())
+            builder.append(' ').append(phase.name()).append('=').append(durations[phase.ordinal()]);
+
+        return builder.toString();
+    }
+}
@@ -19,6 +19,11 @@ import v2.com.playhaven.utils.PHStringUtil;
  * It implements the Parcelable class to ensure
  * that we can pass between activities via the broadcast manager.
  * Note: in the future we may want to simply extend JSONObject? Would be cleaner... 
+ *
+ * The context (the payload for the content template) is by far the largest part and
+ * mostly travels as text: into the parcel and from there to the webview. So we keep
+ * whichever form we were given and only parse the text when someone asks for
+ * the {@link JSONObject} (see {@link #getContext()}).
  */
 public class PHContent implements Parcelable {
 	public enum TransitionType {
@@ -33,8 +38,17 @@ public class PHContent implements Parcelable {
 	
 	public String closeURL;
 
+	/**
+	 * The parsed context, if anyone needed it parsed.
+	 * @deprecated only set once the context has been parsed (a PHContent out of a parcel
+	 * starts out with just the text), use {@link #getContext()} and {@link #setContext(JSONObject)}
+	 */
+	@Deprecated
 	public JSONObject context;
 
+	/** The raw context JSON as it came out of the parcel (only set while {@link #context} is null) */
+	private String contextJSON;
+
 	public Uri url;
 
 	public double closeButtonDelay;
@@ -66,15 +80,11 @@ public class PHContent implements Parcelable {
 		if (closeURL != null && closeURL.equals(PARCEL_NULL))
 			closeURL = null;
 		
-		try {
-			String context_str = in.readString();
-			if (context_str != null)
-				if ( ! context_str.equals(PARCEL_NULL))
-					context = new JSONObject(context_str);
-			
-		} catch (JSONException e) {
-			PHStringUtil.log("Error hydrating PHContent JSON context from Parcel: "+e.getLocalizedMessage());
-		}
+		// kept as text, we only parse it if someone asks (see getContext())
+		String context_str = in.readString();
+		if (context_str != null)
+			if ( ! context_str.equals(PARCEL_NULL))
+				contextJSON = context_str;
 		
 		String url_str = in.readString();
 		if (url_str != null)
@@ -144,7 +154,7 @@ public class PHContent implements Parcelable {
 				if ( ! JSONObject.NULL.equals(context) && 
 					   context.length() > 0				 )
 				
-					this.context = context;
+					setContext(context);
 				
 				
 				if (transition.compareTo("") != 0) {
@@ -161,7 +171,47 @@ public class PHContent implements Parcelable {
 	}
     /** Checks to see if the given JSON payload is empty or not */
     public boolean isEmpty() {
-        return (context == null || context.length() == 0);
+        if (context != null)
+            return (context.length() == 0);
+
+        return (contextJSON == null || contextJSON.trim().equals("{}"));
+    }
+
+    /**
+     * Gets the parsed context, parsing the raw JSON first if that's all we have.
+     * From then on the returned object is the context so changes to it are kept.
+     * @return the context or null if there is none (or it can't be parsed)
+     */
+    public JSONObject getContext() {
+        if (context == null && contextJSON != null) {
+            try {
+                context     = new JSONObject(contextJSON);
+                contextJSON = null;
+            } catch (JSONException e) {
+                PHStringUtil.log("Error hydrating PHContent JSON context: " + e.getLocalizedMessage());
+            }
+        }
+
+        return context;
+    }
+
+    public void setContext(JSONObject context) {
+        this.context     = context;
+        this.contextJSON = null;
+    }
+
+    /**
+     * Gets the context as JSON text without parsing it if we got it as text.
+     * @return the context JSON or null if there is none
+     */
+    public String getContextJSON() {
+        return (context != null ? context.toString() : contextJSON);
+    }
+
+    /** Sets the raw context JSON, it will only be parsed if someone calls {@link #getContext()} */
+    public void setContextJSON(String contextJSON) {
+        this.context     = null;
+        this.contextJSON = contextJSON;
     }
 
     /** Gets the parsed frame dictionary */
@@ -226,7 +276,10 @@ public class PHContent implements Parcelable {
 	public String toString() {
 		String formattedJson = "(NULL)";
 		try {
-			formattedJson = context.toString(2);
+			if (context != null)
+				formattedJson = context.toString(2);
+			else if (contextJSON != null)
+				formattedJson = contextJSON; // not worth parsing just to indent it
 		} catch (JSONException e) {
 			e.printStackTrace();
 			formattedJson = "(NULL)"; 
@@ -257,7 +310,8 @@ public class PHContent implements Parcelable {
 	public void writeToParcel(Parcel out, int flags) {
 		out.writeString(transition != null ? transition.name() : PARCEL_NULL);
 		out.writeString(closeURL != null ? closeURL : PARCEL_NULL );
-		out.writeString(context != null ? context.toString() : PARCEL_NULL);
+		String context_str = getContextJSON();
+		out.writeString(context_str != null ? context_str : PARCEL_NULL);
 		out.writeString(url != null ? url.toString() : PARCEL_NULL);
 		out.writeDouble(closeButtonDelay);
 		out.writeByte((byte) (preloaded ? 1 : 0));
@@ -72,6 +72,18 @@ public class PHBadgeRequest extends PHAPIRequest {
 	public String baseURL(Context context) {
 		return super.createAPIURL(context, "/v3/publisher/content/");
 	}
+
+	/** Decode the badge metadata straight off the wire */
+	@Override
+	public boolean shouldStreamResponse() {
+		return true;
+	}
+
+	@Override
+	public String getMetricsName() {
+		return "badge";
+	}
+
 	@Override
 	public Hashtable<String, String> getAdditionalParams(Context context) {
 		Hashtable<String, String> params = new Hashtable<String, String>();
@@ -1,28 +1,27 @@
 package v2.com.playhaven.requests.base;
 
 import android.content.Context;
-import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
-import android.content.res.Configuration;
 import android.net.Uri;
-import android.os.Build;
-import android.provider.Settings;
-import android.util.DisplayMetrics;
 import v2.com.playhaven.configuration.PHConfiguration;
-import v2.com.playhaven.utils.PHConnectionUtils;
+import v2.com.playhaven.configuration.PHDeviceInfo;
+import v2.com.playhaven.utils.PHConnectivityMonitor;
 import v2.com.playhaven.requests.crashreport.PHCrashReport;
 import v2.com.playhaven.model.PHError;
-import v2.com.playhaven.listeners.PHHttpRequestListener;
+import v2.com.playhaven.listeners.PHHttpAttemptListener;
+import v2.com.playhaven.listeners.PHStreamingHttpRequestListener;
+import v2.com.playhaven.utils.PHJSONStreamParser;
+import v2.com.playhaven.utils.PHLog;
 import v2.com.playhaven.utils.PHStringUtil;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.Hashtable;
-import java.util.Locale;
 
 /**
  * @class PHAPIRequest Nicer wrapper for {@link PHAsyncRequest} and base class
@@ -33,14 +32,21 @@ import java.util.Locale;
  *        is to provide one additional level of abstraction to the base HTTP request.
  *
  *        This class does not have its own listener, so each subclass must have its own for code clarity.
+ *
+ *        Responses are decoded and parsed on the background thread of the {@link PHAsyncRequest}
+ *        (see {@link #prepareRequestSuccess(JSONObject)}) so that only the final
+ *        {@link #handleRequestSuccess(JSONObject)}/{@link #handleRequestFailure(PHError)} run on the main thread.
  */
-public class PHAPIRequest implements PHHttpRequestListener {
+public class PHAPIRequest implements PHStreamingHttpRequestListener, PHHttpAttemptListener {
 
     /** The underlying HTTP request */
 	private PHAsyncRequest conn;
 
 	private HashMap<String, String> signedParams;
 
+	/** The device snapshot {@link #signedParams} were built from (its encoded query is reused) */
+	private PHDeviceInfo signedDeviceInfo;
+
 	private Hashtable<String, String> additionalParams;
 
     private PHConfiguration config;
@@ -49,12 +55,27 @@ public class PHAPIRequest implements PHHttpRequestListener {
 
 	private int requestTag;
 
+	/** The breaker of our endpoint, set once the breaker let us through and we owe it the outcome */
+	private PHCircuitBreaker pendingBreaker;
+
+	/** What the breaker let us through with (see {@link #pendingBreaker}) */
+	private PHCircuitBreaker.Permit pendingPermit;
+
     /** We save the last JSON response (mostly for unit testing)*/
     private JSONObject lastResponse;
 
     /** We save the last {@link v2.com.playhaven.model.PHError} (mostly for unit testing)*/
     private PHError lastError;
 
+    /** The 'response' field parsed in the background, waiting to be handled on the main thread */
+    private JSONObject parsedResult;
+
+    /** The error found while parsing in the background, waiting to be handled on the main thread */
+    private PHError parsedError;
+
+    /** Whether or not the current response has already been parsed in the background */
+    private volatile boolean hasParsedResponse;
+
     /** A simple flag indicating whether or not we should complain about
      * un-overridden methods. By default, we always do. If unit testing,
      * this flag is set to false.
@@ -113,78 +134,24 @@ public class PHAPIRequest implements PHHttpRequestListener {
 	 * */
 	public HashMap<String, String> getSignedParams(Context context) throws UnsupportedEncodingException, NoSuchAlgorithmException {
 		if (signedParams == null) {
-			String device, 
-					nonce, 
-					sigHash, 
-					sig, 
-					appId, 
-					appVersion, 
-					hardware, 
-					os, 
-					idiom, 
-					sdk_version, 
-					width, 
-					height, 
-					sdk_platform, 
-					orientation, 
-					screen_density, 
-					connection;
-
-            // get the device id
-            device              = Settings.System.getString(context.getContentResolver(), Settings.Secure.ANDROID_ID);
-
-            if (device == null)
-                device = "null";
-			
-			idiom 				= String.valueOf(context.getResources().getConfiguration().screenLayout & Configuration.SCREENLAYOUT_SIZE_MASK);
-			
-			orientation 		= "0"; // TODO: use actual orientation?
+			// the device values rarely change so we share one snapshot across requests
+			PHDeviceInfo info = PHDeviceInfo.getSnapshot(context);
+
+			String device = info.getDevice();
 
 			// make sure we generate the device id before doing the sighash!
 			// you like that formatting do you?
 
-			nonce = PHStringUtil.base64Digest(PHStringUtil.generateUUID());
-
-			sig = String.format("%s:%s:%s:%s", config.getToken(context),
-					                           (device != null ? device : ""), // in the future we'll add session
-					                           (nonce != null ? nonce : ""),
-                                               config.getSecret(context));
-
-			sigHash 			= PHStringUtil.hexDigest(sig);
+			String nonce = PHStringUtil.generateNonce();
 
-            try {
-                PackageInfo pinfo   = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
-
-                appId 				= pinfo.packageName;
-
-                appVersion 			= pinfo.versionName;
-
-            } catch (PackageManager.NameNotFoundException e) {
-                // If it doesn't work, leave this field off
-                appId = "";
-
-                appVersion = "";
-            }
-
-			hardware 			= Build.MODEL;
-			
-			os 					= String.format("%s %s", Build.VERSION.RELEASE, Build.VERSION.SDK_INT);
-
-			sdk_version 		= config.getCleanSDKVersion();
-			
-			sdk_platform 		= "android";
-
-            DisplayMetrics dm 	= context.getResources().getDisplayMetrics();
-
-			width 				= String.valueOf(dm.widthPixels);
-			
-			height 				= String.valueOf(dm.heightPixels);
-			
-			screen_density 		= String.valueOf(dm.densityDpi);
+			String sigHash = PHStringUtil.hexSignature(config.getToken(context),
+					                                   (device != null ? device : ""), // in the future we'll add session
+					                                   (nonce != null ? nonce : ""),
+                                                       config.getSecret(context));
 
-            PHConfiguration.ConnectionType type  = PHConnectionUtils.getConnectionType(context);
+            PHConfiguration.ConnectionType type  = PHConnectivityMonitor.getSharedMonitor().getConnectionType(context);
 
-			connection 			= ((type == PHConfiguration.ConnectionType.NO_PERMISSION) ? null : String.valueOf(type.ordinal()));
+			String connection = ((type == PHConfiguration.ConnectionType.NO_PERMISSION) ? null : String.valueOf(type.ordinal()));
 
 			// decide if we add to existing params.
 			Hashtable<String, String> additionalParams = getAdditionalParams(context); // only
@@ -201,44 +168,19 @@ public class PHAPIRequest implements PHHttpRequestListener {
 			HashMap<String, String> add_params = (additionalParams != null ? new HashMap<String, String>(
 					additionalParams) : new HashMap<String, String>());
 
-			signedParams = new HashMap<String, String>();
-
-			signedParams.put("device", 			device);
-
-			signedParams.put("token", 			config.getToken(context));
-			
-			signedParams.put("signature", 		sigHash);
-
-			signedParams.put("nonce", 			nonce);
-			
-			signedParams.put("app", 			appId);
-
-			signedParams.put("app_version", 	appVersion);
-			
-			signedParams.put("hardware", 		hardware);
-
-			signedParams.put("os", 				os);
-			
-			signedParams.put("idiom", 			idiom);
+			// the signed (and device) parameters always win over the additional ones
+			add_params.putAll(info.getParams());
 
-			signedParams.put("width", 			width);
+			add_params.put("token", 		config.getToken(context));
 			
-			signedParams.put("height", 			height);
+			add_params.put("signature", 	sigHash);
 
-			signedParams.put("sdk_version", 	sdk_version);
-			
-			signedParams.put("sdk_platform", 	sdk_platform);
-
-			signedParams.put("orientation", 	orientation);
-			
-			signedParams.put("dpi", 			screen_density);
-
-			signedParams.put("languages", 		Locale.getDefault().getLanguage());
+			add_params.put("nonce", 		nonce);
 
 			if (connection != null)
-				signedParams.put("connection", 	connection);
+				add_params.put("connection", 	connection);
 
-			add_params.putAll(signedParams);
+			signedDeviceInfo = info;
 			signedParams = add_params;
 		}
 
@@ -268,7 +210,24 @@ public class PHAPIRequest implements PHHttpRequestListener {
 	public String signedParamsStr(Context context) throws UnsupportedEncodingException,
 			NoSuchAlgorithmException {
 
-		return PHStringUtil.createQuery(getSignedParams(context));
+		HashMap<String, String> params = getSignedParams(context);
+
+		// someone (a subclass or test) built the parameters without a device snapshot
+		if (signedDeviceInfo == null)
+			return PHStringUtil.createQuery(params);
+
+		// the device part is already encoded so we only encode what is specific to this request
+		HashMap<String, String> requestParams = new HashMap<String, String>(params);
+		requestParams.keySet().removeAll(signedDeviceInfo.getParams().keySet());
+
+		String query        = signedDeviceInfo.getEncodedQuery();
+		String requestQuery = PHStringUtil.createQuery(requestParams);
+
+		if (requestQuery.length() == 0) return query;
+
+		if (query.length() == 0) return requestQuery;
+
+		return query + "&" + requestQuery;
 	}
 
     /** Helper method to ensure that we have a valid token/secret
@@ -292,13 +251,41 @@ public class PHAPIRequest implements PHHttpRequestListener {
      */
 	public void send(Context context) {
 
+		PHDeferredRequests deferred = PHDeferredRequests.getSharedQueue();
+
+		// requests which aren't urgent wait until the radio is awake anyway
+		if (isDeferrable()) {
+			if (deferred.defer(this, context)) return;
+		} else {
+			deferred.onRadioActive();
+		}
+
+		sendNow(context);
+	}
+
+	/** Sends the request right away, without going through {@link PHDeferredRequests} */
+	void sendNow(Context context) {
+
         // if we don't have a valid token and secret, fail silently
         // to fix "rattlesnake" bug.
         if ( ! hasValidTokenAndSecret(context)) {
-            PHStringUtil.log("Either the token or secret has not been properly set");
+            PHLog.w("Either the token or secret has not been properly set");
+            return;
+        }
+
+        // don't even build (and sign) the request while our endpoint keeps failing
+        PHCircuitBreaker breaker = getCircuitBreaker(context);
+
+        PHCircuitBreaker.Permit permit = breaker.allowRequest();
+
+        if (permit == null) {
+            failFast(breaker.createCircuitOpenError());
             return;
         }
 
+        pendingBreaker = breaker;
+        pendingPermit  = permit;
+
         // if we have a valid token and secret, full steam ahead!
 		conn = new PHAsyncRequest(this);
 
@@ -309,6 +296,16 @@ public class PHAPIRequest implements PHHttpRequestListener {
 
 		conn.request_type = getRequestType();
 
+		conn.setStreamResponse(shouldStreamResponse());
+
+		conn.setPriority(getPriority());
+
+		conn.setMetricsName(getMetricsName());
+
+		conn.setRetryPolicy(PHRetryPolicy.fromConfiguration(context, getMetricsName()));
+
+		conn.setIdempotent(isIdempotent());
+
         // make certain the token and secret are valid
         checkTokenAndSecret(config.getToken(context), config.getSecret(context));
 
@@ -327,18 +324,71 @@ public class PHAPIRequest implements PHHttpRequestListener {
 			if (conn.request_type == PHAsyncRequest.RequestType.Post)
 				conn.addPostParams(getPostParams());
 
-			PHStringUtil.log("Sending PHAPIRequest of type: "
-					+ getRequestType().toString());
-			PHStringUtil.log("PHAPIRequest URL: " + getURL(context));
+			if (PHLog.isLoggable(PHLog.Level.Debug)) {
+				PHLog.d("Sending PHAPIRequest of type: "
+						+ getRequestType().toString());
+				PHLog.d("PHAPIRequest URL: " + getURL(context));
+			}
 
 			conn.execute(Uri.parse(getURL(context)));
 
 		} catch (Exception e) {
 			PHCrashReport.reportCrash(e, "PHAPIRequest - send()",
                     PHCrashReport.Urgency.critical);
+
+			// the request never went out so it won't report back either, fail it ourselves
+			failFast(new PHError("Could not send request: " + e.getMessage()));
 		}
 	}
 
+	/** Gets the circuit breaker for our endpoint, configured from the {@link PHConfiguration} */
+	private PHCircuitBreaker getCircuitBreaker(Context context) {
+		PHCircuitBreaker breaker = PHCircuitBreaker.forEndpoint(getCircuitBreakerKey(context));
+
+		breaker.configure(config.getBreakerFailureThreshold(context, getMetricsName()),
+						  config.getBreakerCooldown(context, getMetricsName()));
+
+		return breaker;
+	}
+
+	/** Fails the request (on the main thread, like a real failure) without sending it */
+	private void failFast(final PHError error) {
+		PHStringUtil.log("Failing " + getMetricsName() + " request right away: " + error.getMessage());
+
+		PHRequestScheduler.getSharedScheduler().postToMainThread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					onHttpRequestFailed(error);
+				} catch (Exception e) { // swallow all exceptions
+					PHCrashReport.reportCrash(e, "PHAPIRequest - failFast", PHCrashReport.Urgency.low);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Called once the request we actually sent has finished: tells the circuit breaker
+	 * how it went and lets deferred requests go out while the radio is still awake.
+	 */
+	private void onNetworkRequestFinished(boolean failed) {
+		PHCircuitBreaker breaker = pendingBreaker;
+
+		if (breaker == null) return;
+
+		PHCircuitBreaker.Permit permit = pendingPermit;
+
+		pendingBreaker = null;
+		pendingPermit  = null;
+
+		if (failed)
+			breaker.recordFailure(permit);
+		else
+			breaker.recordSuccess(permit);
+
+		PHDeferredRequests.getSharedQueue().onRadioActive();
+	}
+
     ///////////////////////////////////////////////////
     ///////////// Unit Testing ////////////////////////
 
@@ -377,9 +427,64 @@ public class PHAPIRequest implements PHHttpRequestListener {
 		return null; // just empty
 	}
 
+	/**
+	 * Gets the priority with which the request is queued on the {@link PHRequestScheduler}.
+	 * Subclasses should override to move ahead of (or behind) other requests.
+	 */
+	public PHRequestScheduler.Priority getPriority() {
+		return PHRequestScheduler.Priority.Metadata;
+	}
+
+	/**
+	 * Gets the request type name under which this request's latencies are recorded
+	 * in {@link v2.com.playhaven.metrics.PHRequestMetrics}. Subclasses should override.
+	 */
+	public String getMetricsName() {
+		return "api";
+	}
+
+	/**
+	 * Whether or not this request may safely be sent more than once and so be
+	 * retried according to the {@link PHRetryPolicy} in the {@link PHConfiguration}.
+	 * By default GETs are retried and POSTs are not. Subclasses should override if
+	 * a repeated request would have side effects on the server.
+	 */
+	public boolean isIdempotent() {
+		return (getRequestType() == PHAsyncRequest.RequestType.Get);
+	}
+
+	/**
+	 * Whether or not this request may be held back for a while (see {@link PHDeferredRequests})
+	 * so that it goes out together with other requests instead of waking up the radio on its own.
+	 * Subclasses which aren't user facing should override and return true.
+	 */
+	public boolean isDeferrable() {
+		return false;
+	}
+
+	/**
+	 * Gets the endpoint whose {@link PHCircuitBreaker} this request goes through. By default
+	 * that's the {@link #baseURL(Context)} so requests to the same endpoint share a breaker.
+	 */
+	public String getCircuitBreakerKey(Context context) {
+		String base = baseURL(context);
+
+		return (base != null ? base : getMetricsName());
+	}
+
+	/**
+	 * Whether or not the response should be decoded straight off the network stream
+	 * (see {@link PHJSONStreamParser}) rather than buffered in memory first.
+	 * Subclasses which expect large responses should override and return true.
+	 */
+	public boolean shouldStreamResponse() {
+		return false;
+	}
+
 	/** Should only be overridden and not called directly from external class. */
 	protected void finish() {
-		conn.cancel(true);
+		if (conn != null) // might never have been sent
+			conn.cancel(true);
 
 	}
 
@@ -444,99 +549,249 @@ public class PHAPIRequest implements PHHttpRequestListener {
 		    throw new RuntimeException("Request failed and subclass has not override handleRequestFailure");
 	}
 
+	/**
+	 * Override point for subclasses (template pattern) which need to do expensive work
+	 * with a successful response, such as building model objects. It is called on the
+	 * background thread right before {@link #handleRequestSuccess(JSONObject)} is called
+	 * on the main thread, so implementations must not touch the UI or notify listeners.
+	 * @param res The JSON 'response' field from the server
+	 */
+	protected void prepareRequestSuccess(JSONObject res) {
+		// default implementation does nothing
+	}
+
 	///////////////////////////////////////////////////////////////
 	/////////////// PHAsyncRequest PHHttpRequestListener Methods ///////////////
 
+	/**
+	 * Decodes and parses the response on the background thread of the underlying
+	 * {@link PHAsyncRequest}. The result is delivered to the subclass later
+	 * from {@link #onHttpRequestSucceeded(ByteBuffer, int)} on the main thread.
+	 */
+	@Override
+	public void onHttpRequestSucceededInBackground(ByteBuffer response, int responseCode) {
+		parseResponse(response, responseCode);
+
+		hasParsedResponse = true;
+	}
+
+	/**
+	 * Decodes the response straight off the network stream when in streaming mode.
+	 * Like {@link #onHttpRequestSucceededInBackground(ByteBuffer, int)} this is called on the
+	 * background thread and the result is delivered from {@link #onHttpRequestSucceeded(ByteBuffer, int)}.
+	 */
+	@Override
+	public void onHttpResponseStreamInBackground(InputStream response, int responseCode) throws IOException {
+		parsedResult = null;
+		parsedError  = null;
+
+		PHStringUtil.log("Received streamed response code: " + responseCode);
+
+		if (responseCode != 200) {
+			parsedError = new PHError("Request failed with code: " + responseCode);
+
+		} else {
+			try {
+				acceptParsedResponse(PHJSONStreamParser.parse(response));
+
+			} catch (JSONException e) {
+				parsedError = new PHError("Could not parse JSON because: " + e.getMessage());
+
+			} catch (RuntimeException e) {
+				PHCrashReport.reportCrash(e, "PHAPIRequest - onHttpResponseStreamInBackground", PHCrashReport.Urgency.low);
+				parsedError = new PHError("Unknown error during API request: " + e.getMessage());
+			}
+		}
+
+		hasParsedResponse = true;
+	}
+
+	/** Called for every attempt of the underlying request. Subclasses may override to track retries. */
+	@Override
+	public void onHttpAttempt(int attempt, int responseCode, PHError error, long elapsedMillis, boolean willRetry) {
+		PHStringUtil.log("PHAPIRequest attempt " + attempt + " (" + getMetricsName() + ") finished with code " + responseCode +
+						 " in (ms) " + elapsedMillis + (willRetry ? ", retrying" : ""));
+	}
 
     /**
-     * Handles the success from the underlying HTTP request we've sent.
+     * Handles the success from the underlying HTTP request we've sent. If the response has
+     * already been parsed in the background we merely hand the result to the subclass.
      */
 	@Override
 	public void onHttpRequestSucceeded(ByteBuffer response, int responseCode) {
+
+		// the endpoint answered, only server errors count against it
+		onNetworkRequestFinished(PHRetryPolicy.isRetryableStatus(responseCode));
+
+		// we might be called directly (such as from a unit test) without the background pass
+		if ( ! hasParsedResponse)
+			parseResponse(response, responseCode);
+
+		hasParsedResponse = false;
+
+		PHError error      = parsedError;
+		JSONObject result  = parsedResult;
+
+		parsedError  = null;
+		parsedResult = null;
+
+		if (error != null) {
+			handleRequestFailure(error);
+			return;
+		}
+
+		lastResponse = result;
+
+		// if all the above conditions pass, we actually handle the request
+		// Subclasses often override this method as a form of "templating"
+		// The default implementation simply notifies the listener
+		handleRequestSuccess(result);
+	}
+
+	/**
+	 * Turns the raw response into either a {@link #parsedResult} or a {@link #parsedError}.
+	 * This does all of the decoding, parsing and validating and is safe to call off the main thread.
+	 */
+	private void parseResponse(ByteBuffer response, int responseCode) {
+		parsedResult = null;
+		parsedError  = null;
+
 		PHStringUtil.log("Received response code: " + responseCode);
 
 		// if the request was fundamentally flawed, we need to inform our listener
 		if (responseCode != 200) {
 			
-			handleRequestFailure(new PHError("Request failed with code: " + responseCode));
+			parsedError = new PHError("Request failed with code: " + responseCode);
 			
 			return;
 		}
 
-		// if we see an empty response, it might be an open request.
-		// it's none of our business so we just pass it along.
-        // At this level, PHAPIRequest should not do significant validation
-        // of API responses.
-		if (response == null || response.array() == null) {
+		try {
+			JSONObject json;
 
-            // since it's empty, don't bother parsing, simply pass
-            // in an empty object.
-			JSONObject json = new JSONObject();
+			// if we see an empty response, it might be an open request.
+			// it's none of our business so we just pass it along.
+			// At this level, PHAPIRequest should not do significant validation
+			// of API responses.
+			if (response == null || response.array() == null) {
 
-			// continue processing the request response
-			processRequestResponse(json);
-		}
+				// since it's empty, don't bother parsing, simply pass
+				// in an empty object.
+				json = new JSONObject();
 
+			} else {
 
-        // if it isn't empty, try parsing it.
-		try {
-			// convert the raw bytes into a workable string
-			String res_str = new String(response.array(), "UTF8");
-			
-			PHStringUtil.log("Unparsed JSON: " + res_str);
+				// convert the raw bytes into a workable string
+				String res_str = new String(response.array(), "UTF8");
+
+				if (PHLog.isLoggable(PHLog.Level.Verbose))
+					PHLog.v("Unparsed JSON: " + res_str);
 
-			// try to parse the JSON and see if we get stuck
-			JSONObject json = new JSONObject(res_str);
+				// try to parse the JSON and see if we get stuck
+				json = new JSONObject(res_str);
+			}
 
-			// process the actual JSON data
-			processRequestResponse(json);
+			acceptParsedResponse(json);
 
 		} catch (UnsupportedEncodingException e) {
 			
 			// problems parsing the JSON encoding
-			handleRequestFailure(new PHError("Unsupported encoding when parsing JSON"));
+			parsedError = new PHError("Unsupported encoding when parsing JSON");
 			
 		} catch (JSONException e) {
 			
 			// we had a JSON error
-			handleRequestFailure(new PHError("Could not parse JSON because: " + e.getMessage()));
+			parsedError = new PHError("Could not parse JSON because: " + e.getMessage());
 
 		} catch (Exception e) {
 			e.printStackTrace();
 			// we had some unknown error
-			handleRequestFailure(new PHError("Unknown error during API request: " + e.getMessage()));
+			parsedError = new PHError("Unknown error during API request: " + e.getMessage());
 			
 		}
+	}
+
+	/** Checks the parsed JSON and prepares either the result or the error for the main thread. */
+	private void acceptParsedResponse(JSONObject json) {
+		parsedError = checkResponseForErrors(json);
+
+		if (parsedError != null) return;
 
+		parsedResult = json.optJSONObject("response");
+
+		// let subclasses do their expensive work while we're still in the background
+		prepareRequestSuccess(parsedResult);
 	}
 
 	/**
-	 * Processes the parsed JSON response. Does extensive checking
-	 * to ensure logically consistent and notifies the listener.
+	 * Checks to see if the parsed response contains an explicit error.
+	 * @return the error (which we also remember as the last error) or null if there is none
 	 */
-	public void processRequestResponse(JSONObject response) {
+	private PHError checkResponseForErrors(JSONObject response) {
 		
 		String errmsg 		= response.optString("error");
 		
 		JSONObject errobj 	= response.optJSONObject("errobj");
-		
 
-		/**
-		 * Check to see if the response contains an explicit error
-		 */
 		if ((!JSONObject.NULL.equals(errobj)  && errobj.length() > 0)
 				|| (!response.isNull("error") && errmsg.length() > 0)) {
 
-			
+			lastError = new PHError("Server sent error message: " + errmsg);
+			return lastError;
+		}
+
+		return null;
+	}
+
+	///////////////////////////////////////////////////////////////
+	/////////////// Batching (see PHBatchRequest) /////////////////
+
+	/**
+	 * Parses this request's part of a batch response as if it were the response to
+	 * this request alone. Called on the background thread of the batch.
+	 * @param response this request's entry in the batch response (null if the server left it out)
+	 */
+	void prepareBatchedResponse(JSONObject response) {
+		parsedResult = null;
+		parsedError  = null;
+
+		try {
+			if (response == null)
+				parsedError = new PHError("No response for batched request");
+			else
+				acceptParsedResponse(response);
+
+		} catch (RuntimeException e) {
+			PHCrashReport.reportCrash(e, "PHAPIRequest - prepareBatchedResponse", PHCrashReport.Urgency.low);
+			parsedError = new PHError("Unknown error during API request: " + e.getMessage());
+		}
+
+		hasParsedResponse = true;
+	}
+
+	/** Hands the result of {@link #prepareBatchedResponse(JSONObject)} to the subclass on the main thread */
+	void deliverBatchedResponse() {
+		onHttpRequestSucceeded(null, 200);
+	}
+
+	/**
+	 * Processes the parsed JSON response. Does extensive checking
+	 * to ensure logically consistent and notifies the listener.
+	 */
+	public void processRequestResponse(JSONObject response) {
+
+		PHError error = checkResponseForErrors(response);
+
+		if (error != null) {
 			// we call the often overridden method to allow subclasses to handle the error
             // By default we simply notify the listener of our error.
-            lastError = new PHError("Server sent error message: " + errmsg);
-			handleRequestFailure(lastError);
+			handleRequestFailure(error);
 			return;
 		}
 
 		lastResponse = response.optJSONObject("response");
 
+		prepareRequestSuccess(lastResponse);
 
 		// if all the above conditions pass, we actually handle the request
 		// Subclasses often override this method as a form of "templating"
@@ -550,6 +805,8 @@ public class PHAPIRequest implements PHHttpRequestListener {
 	 */
 	@Override
 	public void onHttpRequestFailed(PHError e) {
+        onNetworkRequestFinished(true);
+
         lastError = e;
 		// the underlying http request informed us of failure
 		handleRequestFailure(e);
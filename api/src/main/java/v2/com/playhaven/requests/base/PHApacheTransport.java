@@ -0,0 +1,119 @@
+package v2.com.playhaven.requests.base;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * {@link PHTransport} on top of the shared Apache client in {@link PHHttpClientPool}.
+ * Redirects are decided through the {@link org.apache.http.protocol.HttpContext} of each request
+ * (see {@link PHHttpClientPool#createContext(PHTransport.RedirectHandler)}) and connect time is
+ * reported by the pool's socket factories.
+ */
+public class PHApacheTransport implements PHTransport {
+
+    @Override
+    public PHTransportResponse execute(PHTransportRequest request, RedirectHandler redirects) throws IOException {
+        final HttpRequestBase httpRequest;
+
+        if (PHTransportRequest.POST.equals(request.getMethod())) {
+            HttpPost post = new HttpPost(request.getUrl());
+
+            if (request.getBody() != null) {
+                ByteArrayEntity entity = new ByteArrayEntity(request.getBody());
+                entity.setContentType(request.getContentType());
+                post.setEntity(entity);
+            }
+
+            httpRequest = post;
+        } else {
+            httpRequest = new HttpGet(request.getUrl());
+        }
+
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet())
+            httpRequest.setHeader(header.getKey(), header.getValue());
+
+        // the client is shared so the timeouts go on the request itself
+        HttpParams params = httpRequest.getParams();
+
+        HttpConnectionParams.setConnectionTimeout(params, request.getConnectTimeout());
+        HttpConnectionParams.setSoTimeout(params, request.getReadTimeout());
+
+        // don't wait longer for a pooled connection than we would for a new one
+        ConnManagerParams.setTimeout(params, request.getConnectTimeout());
+
+        request.setAbortAction(new Runnable() {
+            @Override
+            public void run() {
+                httpRequest.abort();
+            }
+        });
+
+        HttpResponse response = PHHttpClientPool.getSharedClient().execute(httpRequest, PHHttpClientPool.createContext(redirects));
+
+        return new PHApacheResponse(response);
+    }
+
+    @Override
+    public void preconnect(String url, int connectTimeout) throws IOException {
+        PHHttpClientPool.preconnect(url, connectTimeout);
+    }
+
+    @Override
+    public boolean canPreconnect() {
+        return true;
+    }
+
+    private static class PHApacheResponse implements PHTransportResponse {
+        private final HttpResponse response;
+
+        public PHApacheResponse(HttpResponse response) {
+            this.response = response;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return response.getStatusLine().getStatusCode();
+        }
+
+        @Override
+        public String getHeader(String name) {
+            Header header = response.getFirstHeader(name);
+
+            return (header != null ? header.getValue() : null);
+        }
+
+        @Override
+        public long getContentLength() {
+            HttpEntity entity = response.getEntity();
+
+            return (entity != null ? entity.getContentLength() : -1);
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            HttpEntity entity = response.getEntity();
+
+            return (entity != null ? entity.getContent() : null);
+        }
+
+        @Override
+        public void close() throws IOException {
+            HttpEntity entity = response.getEntity();
+
+            if (entity != null)
+                entity.consumeContent();
+        }
+    }
+}
@@ -1,35 +1,30 @@
 package v2.com.playhaven.requests.base;
 
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.util.Base64;
+import v2.com.playhaven.listeners.PHBackgroundHttpRequestListener;
+import v2.com.playhaven.listeners.PHHttpAttemptListener;
 import v2.com.playhaven.listeners.PHHttpRequestListener;
+import v2.com.playhaven.listeners.PHStreamingHttpRequestListener;
+import v2.com.playhaven.metrics.PHRequestTiming;
 import v2.com.playhaven.model.PHError;
 import v2.com.playhaven.requests.crashreport.PHCrashReport;
 import v2.com.playhaven.utils.PHStringUtil;
-import org.apache.http.HttpEntity;
+import v2.com.playhaven.utils.PHLog;
+import org.apache.http.Header;
 import org.apache.http.HttpResponse;
-import org.apache.http.HttpVersion;
 import org.apache.http.NameValuePair;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.client.params.ClientPNames;
-import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.client.utils.URLEncodedUtils;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.client.DefaultRedirectHandler;
 import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.CoreProtocolPNames;
 import org.apache.http.params.HttpParams;
-import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HTTP;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -49,10 +44,22 @@ import java.util.Map;
  * always give priority to the PHHttpCon client.
  * 
  * You can also utilize basic http auth using the {@link PHAsyncRequest#setUsername(String)} and {@link PHAsyncRequest#setPassword(String)}.
+ * 
+ * Requests run on the SDK's own {@link PHRequestScheduler} rather than the {@link android.os.AsyncTask} executor.
+ * Set the priority with {@link #setPriority(PHRequestScheduler.Priority)} before calling {@link #execute}.
+ * 
+ * Timeouts and retries are controlled by a {@link PHRetryPolicy}. Only idempotent requests (see {@link #setIdempotent(boolean)})
+ * are retried and a listener implementing {@link PHHttpAttemptListener} hears about every attempt.
+ * 
+ * Cancelling (see {@link #cancel(boolean)}) aborts the request on the wire so the connection and any
+ * partially read response are released straight away rather than once the body has been downloaded.
+ * 
+ * Each request records a {@link PHRequestTiming} (see {@link v2.com.playhaven.metrics.PHRequestMetrics}) under
+ * the name "http" unless a more specific one is given with {@link #setMetricsName(String)}.
  * @author samuelstewart
  * 
  */
-public class PHAsyncRequest extends AsyncTask<Uri, Integer, ByteBuffer> {
+public class PHAsyncRequest extends PHRequestTask<Uri, ByteBuffer> {
 	
 	public static final int INFINITE_REDIRECTS = Integer.MAX_VALUE;
 	
@@ -84,11 +91,27 @@ public class PHAsyncRequest extends AsyncTask<Uri, Integer, ByteBuffer> {
 
 	private long requestStart;
 	
+	/** Whether or not we should hand the response stream straight to the listener */
+	private boolean streamResponse;
+	
+	/** Whether or not the listener consumed the current response as a stream */
+	private boolean streamedResponse;
+	
+	/** The request currently on the wire (if any) so that {@link #cancel(boolean)} can abort it from another thread */
+	private volatile PHTransportRequest activeRequest;
+	
+	/** Timeouts and retries (a single attempt unless set) */
+	private PHRetryPolicy retryPolicy = PHRetryPolicy.NO_RETRY;
+	
+	/** Whether or not the request may safely be sent more than once (null means only if it is a GET) */
+	private Boolean idempotent;
+	
 	/** Simple class that provides our http connection. We use it to divorce dependencies
 	 * and for unit testing (Dependancy Injection). PHHttpConn supports basic HTTP Auth as well.
+	 * The actual HTTP stack is a {@link PHTransport} (see {@link PHTransports#getDefaultTransport()}).
 	 */
-	public static class PHHttpConn {
-		protected DefaultHttpClient client;
+	public static class PHHttpConn implements PHTransport.RedirectHandler {
+		private PHTransport transport;
 		
 		private int max_redirects = INFINITE_REDIRECTS;
 		
@@ -102,21 +125,6 @@ public class PHAsyncRequest extends AsyncTask<Uri, Integer, ByteBuffer> {
 		
 		private ArrayList<String> redirectUrls = new ArrayList<String>();
 		
-		private HttpUriRequest cur_request;
-		
-		/** Our custom redirect handler. On some android versions, this doesn't work
-		 * which is why we move our main logic to {@link PHHttpConn#shouldRedirect(org.apache.http.HttpResponse)} so clients can call
-		 * directly.
-		 * @author samuelstewart
-		 *
-		 */
-		private class PHRedirectHandler extends DefaultRedirectHandler {
-			@Override
-			public boolean isRedirectRequested(HttpResponse response, HttpContext context) {
-				return shouldRedirect(response);
-			}
-		}
-		
 		/** We must use this wrapper so that we can utilize different scheme registries.
 		 * when testing.
 		 */
@@ -137,20 +145,25 @@ public class PHAsyncRequest extends AsyncTask<Uri, Integer, ByteBuffer> {
 		}
 		
 		///////////////////////////
+		/** Uses the process-wide transport. Redirect decisions are routed
+		 * back to this connection via {@link #shouldRedirect(int, String)}.
+		 */
 		public PHHttpConn() {
-			client = new DefaultHttpClient(enableRedirecting(null));
-			//set our hook into the redirect handler
-			client.setRedirectHandler(new PHRedirectHandler());
+			transport = PHTransports.getDefaultTransport();
+		}
+		
+		public PHTransport getTransport() {
+			return transport;
+		}
+		
+		public void setTransport(PHTransport transport) {
+			this.transport = (transport != null ? transport : PHTransports.getDefaultTransport());
 		}
 		
 		public void setSchemeRegistry(PHSchemeRegistry reg) {
 			this.mSchemeReg = reg;
 		}
 		
-		public DefaultHttpClient getHTTPClient() {
-			return client;
-		}
-
 		////////////////////////////////////////
 		/////// Redirect Methods ///////////////
 		public String getLastRedirect() {
@@ -182,12 +195,18 @@ public class PHAsyncRequest extends AsyncTask<Uri, Integer, ByteBuffer> {
 		 * @return true if we should redirect, false otherwise
 		 */
 		public boolean shouldRedirect(HttpResponse response) {
-			if(isRedirectResponse(response.getStatusLine().getStatusCode())) {
+			Header location = response.getFirstHeader("Location");
+			
+			if (location == null) return false; // not a redirect
+			
+			return shouldRedirect(response.getStatusLine().getStatusCode(), location.getValue());
+		}
+		
+		/** Same as {@link #shouldRedirect(HttpResponse)} for any {@link PHTransport} */
+		@Override
+		public boolean shouldRedirect(int responseCode, String redirectURL) {
+			if(isRedirectResponse(responseCode)) {
 				// first check to make sure a valid scheme (avoid market:// urls)
-				if (response.getHeaders("Location").length == 0) return false; // not a redirect
-				
-				String redirectURL = response.getHeaders("Location")[0].getValue();
-				
 				if (redirectURL == null) return false;
 				
 				Uri uri = Uri.parse(redirectURL);
@@ -213,17 +232,6 @@ public class PHAsyncRequest extends AsyncTask<Uri, Integer, ByteBuffer> {
 			return false;
 		}
 		
-		/** Turn on redirecting using existing parameters or new ones*/
-		private HttpParams enableRedirecting(HttpParams params) {
-			if(params == null)
-				params = new BasicHttpParams();
-
-			params.setParameter(CoreProtocolPNames.PROTOCOL_VERSION, HttpVersion.HTTP_1_1);
-			params.setBooleanParameter(ClientPNames.ALLOW_CIRCULAR_REDIRECTS, true); //force circular redirects...
-			HttpClientParams.setRedirecting(params, true);
-			return params;
-		}
-		
 		public void setUsername(String username) {
 			this.username = username;
 		}
@@ -240,26 +248,22 @@ public class PHAsyncRequest extends AsyncTask<Uri, Integer, ByteBuffer> {
 			this.password = password;
 		}
 		
-		/** Wrapper method so that we can mock if necessary*/
-		public HttpResponse start(HttpUriRequest request) throws IOException {
-			cur_request = request;
-
+		/** Sends the request over our {@link PHTransport}. Can be overridden to mock. */
+		public PHTransportResponse start(PHTransportRequest request) throws IOException {
 			totalRedirects = 0;
 			clearRedirects();
 			
 			// use http auth if available
-			if (username != null && password != null) {
-				String encodedCredentials = Base64.encodeToString((username + ":" + password).getBytes(), Base64.URL_SAFE | Base64.NO_WRAP);
-				String authStr = String.format("Basic %s", encodedCredentials);
-				
-				request.setHeader("Authorization", authStr);
-			}
+			if (username != null && password != null)
+				request.setHeader("Authorization", getAuthorizationHeader());
 			
-			return client.execute(request);
+			return transport.execute(request, this);
 		}
 		
-		public HttpUriRequest getCurrentRequest() {
-			return cur_request;
+		private String getAuthorizationHeader() {
+			String encodedCredentials = Base64.encodeToString((username + ":" + password).getBytes(), Base64.URL_SAFE | Base64.NO_WRAP);
+			
+			return String.format("Basic %s", encodedCredentials);
 		}
 	}
 
@@ -270,6 +274,7 @@ public class PHAsyncRequest extends AsyncTask<Uri, Integer, ByteBuffer> {
 		this.listener = delegate;
 		client = new PHHttpConn();
 		request_type = RequestType.Get;
+		setMetricsName("http");
 	}
 	
 	public void setMaxRedirects(int max) {
@@ -312,7 +317,22 @@ public class PHAsyncRequest extends AsyncTask<Uri, Integer, ByteBuffer> {
 	/** We only take the first uri, so don't bother passing in more than one. */
 	@Override
 	protected ByteBuffer doInBackground(Uri... urls) {
-		return execRequest(urls);
+		ByteBuffer buffer = execRequest(urls);
+		
+		// give the listener a chance to parse the response while we're still off the main thread
+		if (lastError == null && ! isCancelled() && ! streamedResponse && listener instanceof PHBackgroundHttpRequestListener) {
+			long parseStart = PHRequestTiming.now();
+			
+			try {
+				((PHBackgroundHttpRequestListener) listener).onHttpRequestSucceededInBackground(buffer, responseCode);
+			} catch (Exception e) {
+				PHCrashReport.reportCrash(e, "PHAsyncRequest - doInBackground", PHCrashReport.Urgency.critical);
+			}
+			
+			addTiming(PHRequestTiming.Phase.Parse, parseStart);
+		}
+		
+		return buffer;
 	}
 	
 	/** Moved into supporting method so that we can call ourselves recursively on redirects.*/
@@ -320,15 +340,13 @@ public class PHAsyncRequest extends AsyncTask<Uri, Integer, ByteBuffer> {
 		ByteBuffer buffer = null;
 		responseCode = -1;
 		lastError = null;
+		streamedResponse = false;
 		
-		synchronized (this) {
 		try { // this block swallows *all* worst case exceptions
 			isDownloading = true;
 			
 			requestStart = System.currentTimeMillis();
 			
-			client.clearRedirects();
-			
 			if (urls.length > 0) {
 				Uri url = urls[0];
 				
@@ -336,63 +354,212 @@ public class PHAsyncRequest extends AsyncTask<Uri, Integer, ByteBuffer> {
 				if(!url.equals(this.url) && this.url != null)
 					url = this.url;
 				
-				HttpResponse response = null;
-				try {
+				// convert to java.net.uri (b/c we already have escaped the url and Http*** will encode it again.
+				String net_uri = url.toString();
+				
+				for (int attempt = 1; ; attempt++) {
 					if (isCancelled()) return null;
 					
-					// convert to java.net.uri (b/c we already have escaped the url and Http*** will encode it again.
-					String net_uri = url.toString();
+					long attemptStart = PHRequestTiming.now();
+					boolean willRetry = false;
 					
-					// decide what time of connection this is
-					if (request_type == RequestType.Post) {
-						HttpPost request = new HttpPost(net_uri);
-						// set the post fields..
-						request.setEntity(new UrlEncodedFormEntity(postParams));
-
-						response = client.start(request);
-
-					} else if (request_type == RequestType.Get) {
-						HttpGet request = new HttpGet(net_uri);
-						response = client.start(request);
-					} else {
-						HttpGet request = new HttpGet(net_uri);
-						response = client.start(request);
-					}
-
-					// try to grab http response entity (maybe json or image?)
-					HttpEntity entity = response.getEntity();
+					buffer = null;
+					responseCode = -1;
+					lastError = null;
+					streamedResponse = false;
 					
-					// grab the response code
-					responseCode = response.getStatusLine().getStatusCode();
+					client.clearRedirects();
 					
-					// Note: if the response code is a redirect, we should clamp it to a 200
-					// since we often stop redirecting (such as when we find a market:// url).
-					// Hence, if we actually have a redirect url we're good
-					if (responseCode == 302 && getLastRedirectURL() != null)
-						responseCode = 200;
+					try {
+						PHTransportRequest request = createRequest(net_uri);
+						
+						// publish the request before checking for cancellation so that cancel() can't slip in between
+						activeRequest = request;
+						
+						if (isCancelled()) return null;
+						
+						PHTransportResponse response = startTimed(request);
+						
+						// grab the response code
+						responseCode = response.getStatusCode();
+						
+						// Note: if the response code is a redirect, we should clamp it to a 200
+						// since we often stop redirecting (such as when we find a market:// url).
+						// Hence, if we actually have a redirect url we're good
+						if (responseCode == 302 && getLastRedirectURL() != null)
+							responseCode = 200;
+						
+						if (isCancelled()) {
+							// hand the pooled connection back rather than draining the body
+							releaseConnection();
+							return null;
+						}
+						
+						if (PHRetryPolicy.isRetryableStatus(responseCode) && canRetry(attempt)) {
+							// the server is (hopefully) only briefly unavailable so we skip the body and try again
+							willRetry = true;
+							
+							response.close();
+							
+						} else {
+							// try to grab http response body (maybe json or image?)
+							InputStream in_stream = response.getBody();
+							
+							if (in_stream != null) {
+								long readStart = PHRequestTiming.now();
+	
+								if (shouldStreamResponse()) {
+									// let the listener decode straight off the wire (download and parse overlap so we count it all as parsing)
+									((PHStreamingHttpRequestListener) listener).onHttpResponseStreamInBackground(in_stream, responseCode);
+								
+									streamedResponse = true;
+								
+									addTiming(PHRequestTiming.Phase.Parse, readStart);
+								} else {
+									buffer = readStream(in_stream, this);
+								
+									addTiming(PHRequestTiming.Phase.Download, readStart);
+								}
+							}
+							
+							response.close();
+						}
+	
+					} catch (IOException e) {
+						// a half-read connection can't be reused so we make sure the pool drops it
+						releaseConnection();
+						lastError = new PHError(e);
+						
+						willRetry = ( ! isCancelled() && canRetry(attempt));
+					}
 					
-					if (isCancelled()) return null;
+					reportAttempt(attempt, PHRequestTiming.now() - attemptStart, willRetry);
 					
-					if (entity != null) {
-						InputStream in_stream = entity.getContent();
-
-						buffer = readStream(in_stream);
-
-						in_stream.close();
-					}
-
-				} catch (IOException e) {
-					lastError = new PHError(e);
+					if ( ! willRetry || ! waitBeforeRetry(attempt)) break;
 				}
 			}
 		} catch (Exception e) {
 			PHCrashReport.reportCrash(e, "PHAsyncRequest - doInBackground", PHCrashReport.Urgency.critical);
+		} finally {
+			activeRequest = null;
 		}
-		}
+		
+		// don't hold on to a partial (or unwanted) body once we've been cancelled
+		if (isCancelled()) return null;
 		
 		return buffer;
 	}
 	
+	/** Creates a fresh request (with the timeouts of our {@link PHRetryPolicy}) for each attempt */
+	private PHTransportRequest createRequest(String net_uri) throws UnsupportedEncodingException {
+		PHTransportRequest request;
+		
+		// decide what time of connection this is (anything but a POST is sent as a GET)
+		if (request_type == RequestType.Post) {
+			request = new PHTransportRequest(PHTransportRequest.POST, net_uri);
+			
+			// set the post fields (encoded just like UrlEncodedFormEntity does)
+			String form = URLEncodedUtils.format(postParams, HTTP.DEFAULT_CONTENT_CHARSET);
+			request.setBody(form.getBytes(HTTP.DEFAULT_CONTENT_CHARSET), URLEncodedUtils.CONTENT_TYPE);
+		} else {
+			request = new PHTransportRequest(PHTransportRequest.GET, net_uri);
+		}
+		
+		request.setConnectTimeout(retryPolicy.getConnectTimeout());
+		request.setReadTimeout(retryPolicy.getReadTimeout());
+		
+		return request;
+	}
+	
+	/** Whether or not we may try again after the given attempt failed */
+	private boolean canRetry(int attempt) {
+		return isIdempotent() && retryPolicy.canRetry(attempt);
+	}
+	
+	/**
+	 * Sleeps for the backoff delay before the next attempt.
+	 * @return false if we were cancelled while waiting
+	 */
+	private boolean waitBeforeRetry(int attempt) {
+		long delay = retryPolicy.getRetryDelay(attempt);
+		
+		PHStringUtil.log("PHAsyncRequest attempt " + attempt + " failed, retrying in (ms) " + delay);
+		
+		try {
+			if (delay > 0) Thread.sleep(delay);
+		} catch (InterruptedException e) {
+			return false; // cancel(true) interrupts us
+		}
+		
+		return ! isCancelled();
+	}
+	
+	/** Reports the attempt to the listener (on the main thread) if it wants to know */
+	private void reportAttempt(final int attempt, final long elapsed, final boolean willRetry) {
+		if ( ! (listener instanceof PHHttpAttemptListener)) return;
+		
+		final PHHttpAttemptListener attemptListener = (PHHttpAttemptListener) listener;
+		final int code = responseCode;
+		final PHError error = lastError;
+		
+		PHRequestScheduler.getSharedScheduler().postToMainThread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					attemptListener.onHttpAttempt(attempt, code, error, elapsed, willRetry);
+				} catch (Exception e) {
+					PHCrashReport.reportCrash(e, "PHAsyncRequest - reportAttempt", PHCrashReport.Urgency.low);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Starts the request and records the time until the response headers arrived as
+	 * {@link PHRequestTiming.Phase#FirstByte}, minus whatever the pool reported as connect time.
+	 */
+	private PHTransportResponse startTimed(PHTransportRequest request) throws IOException {
+		PHRequestTiming timing = getTiming();
+		
+		if (timing == null) return client.start(request);
+		
+		long connectBefore = timing.getDuration(PHRequestTiming.Phase.Connect);
+		long start         = PHRequestTiming.now();
+		
+		try {
+			return client.start(request);
+		} finally {
+			long connect = timing.getDuration(PHRequestTiming.Phase.Connect) - connectBefore;
+			
+			timing.add(PHRequestTiming.Phase.FirstByte, PHRequestTiming.now() - start - connect);
+		}
+	}
+	
+	/** Adds the time since the given start to the given phase (if we're recording) */
+	private void addTiming(PHRequestTiming.Phase phase, long start) {
+		PHRequestTiming timing = getTiming();
+		
+		if (timing != null)
+			timing.add(phase, PHRequestTiming.now() - start);
+	}
+	
+	/**
+	 * Aborts the current request (if any) so that its socket is closed and its pooled connection released.
+	 * Safe to call from any thread: a read blocked on the socket fails right away with an IOException.
+	 */
+	private void releaseConnection() {
+		PHTransportRequest request = activeRequest;
+		
+		if (request != null)
+			request.abort();
+	}
+	
+	/** Called from {@link #cancel(boolean)} (on the cancelling thread) to stop the download immediately */
+	@Override
+	protected void onCancelRequested() {
+		releaseConnection();
+	}
+	
 	@Override
 	protected void onPostExecute(ByteBuffer result) {
 		super.onPostExecute(result);
@@ -400,9 +567,10 @@ public class PHAsyncRequest extends AsyncTask<Uri, Integer, ByteBuffer> {
 		try { // swallow *all* exceptions (safety)
 			isDownloading = false;
 			
-			long elapsedTimeMillis = System.currentTimeMillis() - requestStart;
-			String outTime = "PHAsyncRequest elapsed time (ms) = " + elapsedTimeMillis;
-			PHStringUtil.log(outTime);
+			if (PHLog.isLoggable(PHLog.Level.Debug)) {
+				long elapsedTimeMillis = System.currentTimeMillis() - requestStart;
+				PHLog.d("PHAsyncRequest elapsed time (ms) = " + elapsedTimeMillis);
+			}
 			
 			if(lastError != null && listener != null)
 				listener.onHttpRequestFailed(lastError);
@@ -437,6 +605,39 @@ public class PHAsyncRequest extends AsyncTask<Uri, Integer, ByteBuffer> {
 		return password;
 	}
 	
+	/** 
+	 * Turns on streaming mode. If the listener is a {@link PHStreamingHttpRequestListener}
+	 * it receives the response body as a stream (on the background thread) instead of us
+	 * buffering it into a {@link ByteBuffer}. The main thread callback then gets a null buffer.
+	 */
+	public void setStreamResponse(boolean streamResponse) {
+		this.streamResponse = streamResponse;
+	}
+	
+	public boolean shouldStreamResponse() {
+		return (streamResponse && listener instanceof PHStreamingHttpRequestListener);
+	}
+	
+	public PHRetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+	
+	/** Must be set before calling {@link #execute} to have any effect. */
+	public void setRetryPolicy(PHRetryPolicy retryPolicy) {
+		this.retryPolicy = (retryPolicy != null ? retryPolicy : PHRetryPolicy.NO_RETRY);
+	}
+	
+	/** GETs are idempotent by default, POSTs must be explicitly marked to be retried */
+	public boolean isIdempotent() {
+		if (idempotent != null) return idempotent;
+		
+		return (request_type == RequestType.Get);
+	}
+	
+	public void setIdempotent(boolean idempotent) {
+		this.idempotent = idempotent;
+	}
+	
 	public void setPHHttpClient(PHHttpConn client) {
 		this.client = client;
 	}
@@ -454,6 +655,14 @@ public class PHAsyncRequest extends AsyncTask<Uri, Integer, ByteBuffer> {
 
 	/** public, static utility method for converting input stream to ByteBuffer */
 	private static ByteBuffer readStream(InputStream inputStream) throws IOException {
+		return readStream(inputStream, null);
+	}
+	
+	/**
+	 * Reads the whole stream, giving up as soon as the given request (if any) is cancelled
+	 * so that the partially read body can be garbage collected right away.
+	 */
+	private static ByteBuffer readStream(InputStream inputStream, PHAsyncRequest request) throws IOException {
 		ByteArrayOutputStream output = new ByteArrayOutputStream();
 
 		int bufferSize = 1024;
@@ -461,6 +670,8 @@ public class PHAsyncRequest extends AsyncTask<Uri, Integer, ByteBuffer> {
 
 		int len = 0;
 		while ((len = inputStream.read(buffer)) != -1) {
+			if (request != null && request.isCancelled())
+				throw new InterruptedIOException("Request cancelled");
 			
 			output.write(buffer, 0, len);
 		}
@@ -0,0 +1,219 @@
+package v2.com.playhaven.requests.base;
+
+import android.content.Context;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import v2.com.playhaven.model.PHError;
+import v2.com.playhaven.requests.crashreport.PHCrashReport;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sends several API requests (badge, IAP tracking, open, crash reports, ...) as a single
+ * signed POST instead of one signed round trip each. The requests themselves are never sent,
+ * they only describe what to ask for and handle their own part of the response through the
+ * usual {@link PHAPIRequest#handleRequestSuccess(JSONObject)}/{@link PHAPIRequest#handleRequestFailure(PHError)}.
+ *
+ * The batch contract:
+ * <ul>
+ *     <li>the batch is signed (token, nonce, signature and device parameters) exactly like any other request</li>
+ *     <li>the "requests" POST parameter holds a JSON array with one object per request:
+ *     {"method": "GET"|"POST", "path": "/v3/publisher/...", "params": {...}, "post": {...}}</li>
+ *     <li>the server answers with {"response": {"responses": [...]}} where each entry is what
+ *     the request would have gotten on its own ({"response": ..., "error": ..., "errobj": ...})
+ *     in the same order as the requests</li>
+ * </ul>
+ *
+ * If the batch as a whole fails, every request in it fails with the same error.
+ * Requests which stream their response (such as content requests) can't be batched.
+ */
+public class PHBatchRequest extends PHAPIRequest {
+
+    /** The most requests we pack into a single batch */
+    public static final int MAX_BATCH_SIZE = 20;
+
+    private final ArrayList<PHAPIRequest> requests = new ArrayList<PHAPIRequest>();
+
+    /** The serialized request descriptions, built in {@link #send(Context)} */
+    private String payload;
+
+    public PHBatchRequest(PHAPIRequest... requests) {
+        for (PHAPIRequest request : requests)
+            add(request);
+    }
+
+    /**
+     * Adds a request to the batch. Must be called before the batch is sent.
+     * @throws IllegalArgumentException if the request streams its response (see {@link PHAPIRequest#shouldStreamResponse()})
+     * @throws IllegalStateException if the batch is already full (see {@link #MAX_BATCH_SIZE})
+     */
+    public void add(PHAPIRequest request) {
+        // the batch response is parsed as a whole, there's no stream to hand to the request
+        if (request.shouldStreamResponse())
+            throw new IllegalArgumentException("Requests which stream their response can't be batched: " + request.getMetricsName());
+
+        if (requests.size() >= MAX_BATCH_SIZE)
+            throw new IllegalStateException("A batch holds at most " + MAX_BATCH_SIZE + " requests");
+
+        requests.add(request);
+    }
+
+    public List<PHAPIRequest> getRequests() {
+        return Collections.unmodifiableList(requests);
+    }
+
+    public boolean isFull() {
+        return requests.size() >= MAX_BATCH_SIZE;
+    }
+
+    @Override
+    public void send(Context context) {
+        try {
+            payload = createPayload(context);
+
+        } catch (Exception e) {
+            PHCrashReport.reportCrash(e, "PHBatchRequest - send()", PHCrashReport.Urgency.critical);
+            return;
+        }
+
+        super.send(context);
+    }
+
+    /**
+     * Serializes the requests for the "requests" parameter (see the batch contract above).
+     * Called by {@link #send(Context)}, public for unit testing.
+     */
+    public String createPayload(Context context) throws JSONException {
+        JSONArray descriptions = new JSONArray();
+
+        for (PHAPIRequest request : requests)
+            descriptions.put(describe(context, request));
+
+        return descriptions.toString();
+    }
+
+    /** Describes a single request for the batch (see the batch contract above) */
+    private JSONObject describe(Context context, PHAPIRequest request) throws JSONException {
+        JSONObject description = new JSONObject();
+
+        boolean isPost = (request.getRequestType() == PHAsyncRequest.RequestType.Post);
+
+        description.put("method", isPost ? "POST" : "GET");
+
+        String baseURL = request.baseURL(context);
+        description.put("path", (baseURL != null ? URI.create(baseURL).getPath() : null));
+
+        // only call *once* since it might have side effects (see PHAPIRequest#getSignedParams)
+        description.put("params", toJSON(request.getAdditionalParams(context)));
+
+        if (isPost)
+            description.put("post", toJSON(request.getPostParams()));
+
+        return description;
+    }
+
+    private static JSONObject toJSON(Hashtable<String, String> params) throws JSONException {
+        JSONObject json = new JSONObject();
+
+        if (params == null) return json;
+
+        for (Map.Entry<String, String> param : params.entrySet())
+            json.put(param.getKey(), param.getValue());
+
+        return json;
+    }
+
+    ///////////////////////////////////////////////////////
+    ////////////////// Overrides //////////////////////////
+
+    @Override
+    public String baseURL(Context context) {
+        return super.createAPIURL(context, "/v3/publisher/batch/");
+    }
+
+    @Override
+    public PHAsyncRequest.RequestType getRequestType() {
+        return PHAsyncRequest.RequestType.Post;
+    }
+
+    @Override
+    public Hashtable<String, String> getPostParams() {
+        Hashtable<String, String> params = new Hashtable<String, String>();
+
+        if (payload != null)
+            params.put("requests", payload);
+
+        return params;
+    }
+
+    /** The batch goes out with the most urgent priority of the requests in it */
+    @Override
+    public PHRequestScheduler.Priority getPriority() {
+        PHRequestScheduler.Priority priority = null;
+
+        for (PHAPIRequest request : requests) {
+            if (priority == null || request.getPriority().ordinal() < priority.ordinal())
+                priority = request.getPriority();
+        }
+
+        return (priority != null ? priority : super.getPriority());
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "batch";
+    }
+
+    /** Sending the batch again is only safe if sending each of the requests again is */
+    @Override
+    public boolean isIdempotent() {
+        for (PHAPIRequest request : requests) {
+            if ( ! request.isIdempotent())
+                return false;
+        }
+
+        return true;
+    }
+
+    /** Splits the response and lets each request prepare its part (on the background thread) */
+    @Override
+    protected void prepareRequestSuccess(JSONObject res) {
+        JSONArray responses = (res != null ? res.optJSONArray("responses") : null);
+
+        for (int i = 0; i < requests.size(); i++) {
+            JSONObject response = (responses != null ? responses.optJSONObject(i) : null);
+
+            requests.get(i).prepareBatchedResponse(response);
+        }
+    }
+
+    @Override
+    public void handleRequestSuccess(JSONObject res) {
+        for (PHAPIRequest request : requests) {
+            try {
+                request.deliverBatchedResponse();
+
+            } catch (Exception e) { // one misbehaving request shouldn't keep the others from their response
+                PHCrashReport.reportCrash(e, "PHBatchRequest - handleRequestSuccess", PHCrashReport.Urgency.high);
+            }
+        }
+    }
+
+    @Override
+    public void handleRequestFailure(PHError error) {
+        for (PHAPIRequest request : requests) {
+            try {
+                request.onHttpRequestFailed(error);
+
+            } catch (Exception e) {
+                PHCrashReport.reportCrash(e, "PHBatchRequest - handleRequestFailure", PHCrashReport.Urgency.high);
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package v2.com.playhaven.requests.base;
+
+import v2.com.playhaven.configuration.PHConfiguration;
+import v2.com.playhaven.metrics.PHRequestMetrics;
+import v2.com.playhaven.model.PHError;
+import v2.com.playhaven.utils.PHLog;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A circuit breaker per API endpoint. When an endpoint keeps failing (it can't be reached or
+ * answers with a server error) we stop sending requests to it for a while: they fail right away
+ * with an error for which {@link #isCircuitOpenError(PHError)} is true instead of building
+ * a client, signing and waiting for the network to fail (keeping the radio awake).
+ *
+ * <ul>
+ *     <li>Closed: requests go through. After {@link PHConfiguration#getBreakerFailureThreshold} failed
+ *     requests in a row the breaker opens.</li>
+ *     <li>Open: requests fail fast. Once the cooldown (see {@link PHConfiguration#getBreakerCooldown}) has
+ *     passed the breaker becomes half open.</li>
+ *     <li>HalfOpen: a single trial request goes through. If it succeeds the breaker closes, otherwise it opens again.</li>
+ * </ul>
+ *
+ * Every request the breaker lets through gets a {@link Permit} to report its outcome with. Once the breaker
+ * has left Closed only the trial request's outcome counts: requests which were already on their way when
+ * the breaker opened can't close (or reopen) it.
+ *
+ * State changes are reported to {@link PHRequestMetrics}. Breakers are shared process-wide, see {@link #forEndpoint(String)}.
+ */
+public class PHCircuitBreaker {
+
+    public enum State {
+        Closed,
+        Open,
+        HalfOpen
+    }
+
+    /** The error code of the {@link PHError} requests fail with while the breaker is open */
+    public static final int CIRCUIT_OPEN_ERROR_CODE = 1001;
+
+    /** What a request the breaker let through reports its outcome with (see {@link #recordSuccess(Permit)}) */
+    public static final class Permit {
+        private Permit() {
+        }
+    }
+
+    /** Handed to every request while closed, only the half open trial gets its own */
+    private static final Permit CLOSED_PERMIT = new Permit();
+
+    private static final ConcurrentHashMap<String, PHCircuitBreaker> breakers = new ConcurrentHashMap<String, PHCircuitBreaker>();
+
+    private final String endpoint;
+
+    private State state = State.Closed;
+
+    private int consecutiveFailures;
+
+    /** When we opened (or let the half open trial request through) */
+    private long stateChangedAt;
+
+    /** The permit of the half open trial request while it's on its way */
+    private Permit trial;
+
+    private volatile int failureThreshold = PHConfiguration.DEFAULT_BREAKER_FAILURE_THRESHOLD;
+
+    private volatile long cooldown = PHConfiguration.DEFAULT_BREAKER_COOLDOWN_MS;
+
+    private PHCircuitBreaker(String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    /** Gets the (shared) breaker for the given endpoint */
+    public static PHCircuitBreaker forEndpoint(String endpoint) {
+        PHCircuitBreaker breaker = breakers.get(endpoint);
+
+        if (breaker == null) {
+            PHCircuitBreaker created = new PHCircuitBreaker(endpoint);
+
+            breaker = breakers.putIfAbsent(endpoint, created);
+
+            if (breaker == null)
+                breaker = created;
+        }
+
+        return breaker;
+    }
+
+    /** Closes all breakers (mostly for unit testing) */
+    public static void resetAll() {
+        breakers.clear();
+    }
+
+    public static boolean isCircuitOpenError(PHError error) {
+        return (error != null && error.getErrorCode() == CIRCUIT_OPEN_ERROR_CODE);
+    }
+
+    /** The error requests fail with while the breaker is open */
+    public PHError createCircuitOpenError() {
+        return new PHError("Not sending request, " + endpoint + " is failing (circuit open)", CIRCUIT_OPEN_ERROR_CODE);
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @param failureThreshold how many failed requests in a row open the breaker
+     * @param cooldown how long (ms) the breaker stays open before letting a trial request through
+     */
+    public void configure(int failureThreshold, long cooldown) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.cooldown         = Math.max(0, cooldown);
+    }
+
+    /**
+     * Asks whether a request may be sent. When half open only the first caller is let through
+     * until it reports back via {@link #recordSuccess(Permit)} or {@link #recordFailure(Permit)}.
+     * @return the permit to report the outcome with or null if the request may not be sent
+     */
+    public Permit allowRequest() {
+        State from;
+        Permit permit;
+
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+
+            switch (state) {
+                case Closed:
+                    return CLOSED_PERMIT;
+
+                case Open:
+                    if (now - stateChangedAt < cooldown) return null;
+                    break;
+
+                case HalfOpen:
+                    // a trial request which never reported back (cancelled) doesn't block us forever
+                    if (trial != null && now - stateChangedAt < cooldown) return null;
+                    break;
+            }
+
+            from           = state;
+            state          = State.HalfOpen;
+            stateChangedAt = now;
+            permit         = new Permit();
+            trial          = permit;
+        }
+
+        reportTransition(from, State.HalfOpen);
+        return permit;
+    }
+
+    public void recordSuccess(Permit permit) {
+        State from;
+
+        synchronized (this) {
+            if ( ! counts(permit)) return;
+
+            consecutiveFailures = 0;
+            trial               = null;
+
+            if (state == State.Closed) return;
+
+            from  = state;
+            state = State.Closed;
+        }
+
+        reportTransition(from, State.Closed);
+    }
+
+    public void recordFailure(Permit permit) {
+        State from;
+
+        synchronized (this) {
+            if ( ! counts(permit)) return;
+
+            consecutiveFailures++;
+            trial = null;
+
+            if (state == State.Open) return;
+
+            if (state == State.Closed && consecutiveFailures < failureThreshold) return;
+
+            from           = state;
+            state          = State.Open;
+            stateChangedAt = System.currentTimeMillis();
+        }
+
+        reportTransition(from, State.Open);
+    }
+
+    /** Must hold the lock. Whether the outcome of the request holding the given permit counts (see the class comment). */
+    private boolean counts(Permit permit) {
+        return (state == State.Closed || (permit != null && permit == trial));
+    }
+
+    private void reportTransition(State from, State to) {
+        if (from == to) return;
+
+        PHLog.i("Circuit breaker for " + endpoint + ": " + from + " -> " + to);
+
+        PHRequestMetrics.getSharedMetrics().recordBreakerTransition(endpoint, from, to);
+    }
+}
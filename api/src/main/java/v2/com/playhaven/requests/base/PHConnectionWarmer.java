@@ -0,0 +1,107 @@
+package v2.com.playhaven.requests.base;
+
+import v2.com.playhaven.configuration.PHConfiguration;
+import v2.com.playhaven.utils.PHStringUtil;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * Warms up connections ahead of time: resolves the host and leaves an idle connection
+ * to it in the pool of the default {@link PHTransport} (see {@link PHTransport#preconnect(String, int)}).
+ * {@link v2.com.playhaven.requests.open.PHOpenRequest} warms the hosts of the precache list so that
+ * prefetches start on a warm socket. Nothing is warmed if the transport can't open a bare connection
+ * (see {@link PHTransport#canPreconnect()}): sending a request just to warm up costs more than it saves.
+ *
+ * Each host is warmed by its own task so hosts are warmed in parallel. The tasks report
+ * their timings as "warmup" to {@link v2.com.playhaven.metrics.PHRequestMetrics}; a warm
+ * socket then shows up as a (close to) zero connect phase on the next request to that host.
+ */
+public class PHConnectionWarmer extends PHRequestTask<String, Void> {
+
+    /** When we last warmed each host (scheme://host:port) so we don't keep opening sockets */
+    private static final HashMap<String, Long> lastWarmed = new HashMap<String, Long>();
+
+    private PHConnectionWarmer(PHRequestScheduler.Priority priority) {
+        setPriority(priority);
+        setMetricsName("warmup");
+    }
+
+    /**
+     * Warms up a connection to the host of each of the given urls, skipping hosts
+     * we've warmed within the keep-alive window (see {@link PHHttpClientPool#DEFAULT_KEEP_ALIVE_MS}).
+     * @param priority the priority of the warm up tasks
+     * @param urls urls on the hosts to warm up (invalid ones are ignored)
+     */
+    public static void warm(PHRequestScheduler.Priority priority, String... urls) {
+        if ( ! PHTransports.getDefaultTransport().canPreconnect()) return;
+
+        LinkedHashSet<String> hosts = new LinkedHashSet<String>();
+
+        for (String url : urls) {
+            String host = getHostKey(url);
+
+            if (host != null && shouldWarm(host))
+                hosts.add(host);
+        }
+
+        for (String host : hosts)
+            new PHConnectionWarmer(priority).execute(host);
+    }
+
+    /** Forgets which hosts we warmed (mostly for unit testing) */
+    public static synchronized void reset() {
+        lastWarmed.clear();
+    }
+
+    private static synchronized boolean shouldWarm(String host) {
+        long now  = System.currentTimeMillis();
+        Long last = lastWarmed.get(host);
+
+        if (last != null && now - last < PHHttpClientPool.DEFAULT_KEEP_ALIVE_MS)
+            return false;
+
+        lastWarmed.put(host, now);
+        return true;
+    }
+
+    /** Reduces the url to scheme://host[:port]/ so that every url on a host warms the same thing */
+    private static String getHostKey(String url) {
+        if (url == null) return null;
+
+        try {
+            URL parsed = new URL(url);
+
+            if (parsed.getHost() == null || parsed.getHost().length() == 0) return null;
+
+            String port = (parsed.getPort() != -1 ? ":" + parsed.getPort() : "");
+
+            return parsed.getProtocol() + "://" + parsed.getHost() + port + "/";
+
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    @Override
+    protected Void doInBackground(String... hosts) {
+        for (String host : hosts) {
+            if (isCancelled()) break;
+
+            try {
+                PHTransports.getDefaultTransport().preconnect(host, PHConfiguration.DEFAULT_CONNECT_TIMEOUT_MS);
+
+                PHStringUtil.log("Warmed up connection to: " + host);
+
+            } catch (IOException e) {
+                // not worth a crash report, the real request will simply connect itself
+                PHStringUtil.log("Could not warm up connection to " + host + ": " + e.getMessage());
+            }
+        }
+
+        return null;
+    }
+}
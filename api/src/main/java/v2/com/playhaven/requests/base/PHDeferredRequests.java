@@ -0,0 +1,170 @@
+package v2.com.playhaven.requests.base;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import v2.com.playhaven.requests.crashreport.PHCrashReport;
+import v2.com.playhaven.utils.PHLog;
+
+import java.util.ArrayList;
+
+/**
+ * Holds back requests which aren't urgent (IAP tracking, crash reports) so that
+ * they go out together instead of each waking up the cellular radio (and paying for the
+ * seconds it stays powered up afterwards) on its own.
+ *
+ * Deferred requests are flushed:
+ * <ul>
+ *     <li>as soon as a user facing request goes out (see {@link #onRadioActive()}) since the radio is awake anyway</li>
+ *     <li>right away if the radio was active within the last {@link #RADIO_TAIL_MS}</li>
+ *     <li>at the latest once the oldest deferred request has waited for the max delay (see {@link #setMaxDelay(long)})</li>
+ *     <li>when the host activity pauses (see {@link #onHostPaused()}): a process in the background may be killed
+ *     at any time and deferred requests only live in memory</li>
+ * </ul>
+ *
+ * Deferred requests are sent one by one when flushed, the radio wakes up once for all of them.
+ * API requests opt in to being deferred by overriding {@link PHAPIRequest#isDeferrable()}.
+ *
+ * This class is a singleton, see {@link #getSharedQueue()}.
+ */
+public class PHDeferredRequests {
+
+    /** How long (ms) the radio stays powered up after network activity (a rough, conservative guess) */
+    public static final long RADIO_TAIL_MS = 5 * 1000;
+
+    /** The longest (ms) we hold back a request unless configured otherwise */
+    public static final long DEFAULT_MAX_DELAY_MS = 60 * 1000;
+
+    private static PHDeferredRequests sharedQueue;
+
+    private final Handler mainHandler;
+
+    private final ArrayList<PHAPIRequest> requests = new ArrayList<PHAPIRequest>();
+
+    /** The (application) context to send the deferred API requests with */
+    private Context context;
+
+    private long maxDelay = DEFAULT_MAX_DELAY_MS;
+
+    private long lastRadioActivity;
+
+    private boolean flushScheduled;
+
+    private final Runnable deadlineFlush = new Runnable() {
+        @Override
+        public void run() {
+            PHLog.d("Deferred requests waited long enough, flushing");
+
+            flush();
+        }
+    };
+
+    public static synchronized PHDeferredRequests getSharedQueue() {
+        if (sharedQueue == null)
+            sharedQueue = new PHDeferredRequests();
+
+        return sharedQueue;
+    }
+
+    private PHDeferredRequests() {
+        mainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /** Sets the longest (ms) we hold back a request (0 turns deferring off) */
+    public synchronized void setMaxDelay(long maxDelay) {
+        this.maxDelay = Math.max(0, maxDelay);
+    }
+
+    public synchronized long getMaxDelay() {
+        return maxDelay;
+    }
+
+    /** The number of requests waiting to be flushed (mostly for unit testing) */
+    public synchronized int getPendingCount() {
+        return requests.size();
+    }
+
+    /**
+     * Holds back the given API request unless the radio is already active.
+     * @return true if the request was deferred, false if the caller should send it right away
+     */
+    public boolean defer(PHAPIRequest request, Context context) {
+        synchronized (this) {
+            if (isRadioActive()) return false;
+
+            this.context = context.getApplicationContext();
+
+            requests.add(request);
+
+            scheduleDeadline();
+        }
+
+        return true;
+    }
+
+    /** Tells us that a (user facing) request is going out: we send everything deferred along with it. */
+    public void onRadioActive() {
+        synchronized (this) {
+            lastRadioActivity = System.currentTimeMillis();
+
+            if (requests.isEmpty()) return;
+        }
+
+        flush();
+    }
+
+    /**
+     * Tells us that the host activity is pausing. Its process may be killed any time from now on
+     * which would lose the deferred requests (such as purchase reports) so we send them right away.
+     */
+    public void onHostPaused() {
+        synchronized (this) {
+            if (requests.isEmpty()) return;
+        }
+
+        PHLog.d("Host paused, flushing deferred requests");
+
+        flush();
+    }
+
+    /** Sends all deferred requests right now */
+    public void flush() {
+        ArrayList<PHAPIRequest> flushedRequests;
+        Context flushContext;
+
+        synchronized (this) {
+            flushedRequests = new ArrayList<PHAPIRequest>(requests);
+            flushContext    = context;
+
+            requests.clear();
+
+            mainHandler.removeCallbacks(deadlineFlush);
+            flushScheduled = false;
+
+            // whatever we send now keeps the radio up for a while
+            lastRadioActivity = System.currentTimeMillis();
+        }
+
+        try {
+            for (PHAPIRequest request : flushedRequests)
+                request.sendNow(flushContext);
+
+        } catch (Exception e) { // swallow all exceptions
+            PHCrashReport.reportCrash(e, "PHDeferredRequests - flush", PHCrashReport.Urgency.high);
+        }
+    }
+
+    /** Must hold the lock */
+    private boolean isRadioActive() {
+        return (maxDelay == 0 || System.currentTimeMillis() - lastRadioActivity < RADIO_TAIL_MS);
+    }
+
+    /** Must hold the lock. The deadline is set by the oldest deferred request. */
+    private void scheduleDeadline() {
+        if (flushScheduled) return;
+
+        flushScheduled = true;
+
+        mainHandler.postDelayed(deadlineFlush, maxDelay);
+    }
+}
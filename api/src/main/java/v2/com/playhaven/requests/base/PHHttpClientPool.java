@@ -0,0 +1,294 @@
+package v2.com.playhaven.requests.base;
+
+import org.apache.http.Header;
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.params.ClientPNames;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultRedirectHandler;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.CoreProtocolPNames;
+import org.apache.http.params.DefaultedHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import v2.com.playhaven.configuration.PHConfiguration;
+import v2.com.playhaven.metrics.PHRequestTiming;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Owns the single, process-wide {@link DefaultHttpClient} behind the {@link PHApacheTransport}
+ * (and so every {@link PHAsyncRequest.PHHttpConn} and {@link v2.com.playhaven.requests.open.PHPrefetchTask}
+ * on that transport).
+ *
+ * The client sits on top of a {@link ThreadSafeClientConnManager} so that sockets to the
+ * API host and the CDN are kept alive and reused between requests instead of paying
+ * for a fresh TCP handshake on every call.
+ *
+ * Because the client is shared, the redirect handler cannot belong to any single
+ * {@link PHAsyncRequest.PHHttpConn}. Instead, each connection registers itself in the
+ * {@link HttpContext} of its request (see {@link #createContext(PHTransport.RedirectHandler)})
+ * and the shared handler simply delegates to it.
+ *
+ * The socket factories are wrapped so that the time spent opening new connections (including
+ * the TLS handshake) is reported as {@link PHRequestTiming.Phase#Connect} to the request running
+ * on the calling thread. Reused connections never hit the factories and so cost nothing.
+ */
+public class PHHttpClientPool {
+
+    /** The maximum number of pooled connections across all hosts */
+    public static final int MAX_TOTAL_CONNECTIONS = 8;
+
+    /** The maximum number of pooled connections to any single host */
+    public static final int MAX_CONNECTIONS_PER_HOST = 4;
+
+    /** How long we keep an idle connection around if the server doesn't tell us */
+    public static final long DEFAULT_KEEP_ALIVE_MS = 30 * 1000;
+
+    /** The {@link HttpContext} attribute under which the {@link PHTransport.RedirectHandler} of a request is stored */
+    public static final String CONN_ATTRIBUTE = "v2.com.playhaven.http.conn";
+
+    /** Stands in for a missing redirect handler so that we never redirect */
+    private static final Object NO_REDIRECTS = new Object();
+
+    /** The shared client (lazily created) */
+    private static DefaultHttpClient sharedClient;
+
+    /**
+     * Redirect handler installed on the shared client. It looks up the
+     * {@link PHAsyncRequest.PHHttpConn} which started the request and lets it decide.
+     * On some android versions this handler is never called which is why
+     * {@link PHAsyncRequest.PHHttpConn#shouldRedirect(HttpResponse)} is public.
+     */
+    private static class PHRedirectHandler extends DefaultRedirectHandler {
+        @Override
+        public boolean isRedirectRequested(HttpResponse response, HttpContext context) {
+            Object handler = (context != null ? context.getAttribute(CONN_ATTRIBUTE) : null);
+
+            if (handler instanceof PHAsyncRequest.PHHttpConn)
+                return ((PHAsyncRequest.PHHttpConn) handler).shouldRedirect(response);
+
+            if (handler instanceof PHTransport.RedirectHandler) {
+                Header location = response.getFirstHeader("Location");
+
+                return (location != null &&
+                        ((PHTransport.RedirectHandler) handler).shouldRedirect(response.getStatusLine().getStatusCode(), location.getValue()));
+            }
+
+            if (handler == NO_REDIRECTS)
+                return false;
+
+            return super.isRedirectRequested(response, context);
+        }
+    }
+
+    /** Keeps connections alive for as long as the server allows or {@link #DEFAULT_KEEP_ALIVE_MS} otherwise */
+    private static class PHKeepAliveStrategy extends DefaultConnectionKeepAliveStrategy {
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            long duration = super.getKeepAliveDuration(response, context);
+
+            return (duration > 0 ? duration : DEFAULT_KEEP_ALIVE_MS);
+        }
+    }
+
+    /** Reports the time spent connecting sockets to the {@link PHRequestTiming} of the current thread */
+    private static class PHTimedSocketFactory implements SocketFactory {
+        private final SocketFactory factory;
+
+        public PHTimedSocketFactory(SocketFactory factory) {
+            this.factory = factory;
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return factory.createSocket();
+        }
+
+        @Override
+        public Socket connectSocket(Socket sock, String host, int port, InetAddress localAddress, int localPort, HttpParams params) throws IOException {
+            long start = PHRequestTiming.now();
+
+            try {
+                return factory.connectSocket(sock, host, port, localAddress, localPort, params);
+            } finally {
+                addConnectTime(start);
+            }
+        }
+
+        @Override
+        public boolean isSecure(Socket sock) {
+            return factory.isSecure(sock);
+        }
+
+        protected static void addConnectTime(long start) {
+            PHRequestTiming timing = PHRequestTiming.getCurrent();
+
+            if (timing != null)
+                timing.add(PHRequestTiming.Phase.Connect, PHRequestTiming.now() - start);
+        }
+    }
+
+    /** Same as {@link PHTimedSocketFactory} but also times TLS layered on top of a (proxy) socket */
+    private static class PHTimedLayeredSocketFactory extends PHTimedSocketFactory implements LayeredSocketFactory {
+        private final LayeredSocketFactory factory;
+
+        public PHTimedLayeredSocketFactory(LayeredSocketFactory factory) {
+            super(factory);
+            this.factory = factory;
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+            long start = PHRequestTiming.now();
+
+            try {
+                return factory.createSocket(socket, host, port, autoClose);
+            } finally {
+                addConnectTime(start);
+            }
+        }
+    }
+
+    /** Gets the shared client, creating it on first use. */
+    public static synchronized DefaultHttpClient getSharedClient() {
+        if (sharedClient == null)
+            sharedClient = createClient();
+
+        // drop any sockets the server has already given up on
+        sharedClient.getConnectionManager().closeExpiredConnections();
+
+        return sharedClient;
+    }
+
+    /** Creates a fresh context which routes redirect decisions to the given handler (null never redirects). */
+    public static HttpContext createContext(PHTransport.RedirectHandler handler) {
+        HttpContext context = new BasicHttpContext();
+        context.setAttribute(CONN_ATTRIBUTE, (handler != null ? handler : NO_REDIRECTS));
+        return context;
+    }
+
+    /**
+     * Opens a connection to the host of the given url and leaves it idle in the pool so that
+     * the next request to that host skips DNS and the TCP (and TLS) handshake. If the pool
+     * already has an idle connection for that host we simply keep it.
+     * The connect time is reported to the {@link PHRequestTiming} of the calling thread (if any).
+     */
+    public static void preconnect(String url, int connectTimeout) throws IOException {
+        DefaultHttpClient client = getSharedClient();
+
+        HttpGet request = new HttpGet(url);
+        HttpRoute route;
+
+        try {
+            // ask the client's own planner so the route matches the one a real request would use
+            route = client.getRoutePlanner().determineRoute(URIUtils.extractHost(request.getURI()), request, new BasicHttpContext());
+        } catch (HttpException e) {
+            throw new IOException("Could not route " + url + ": " + e.getMessage());
+        }
+
+        // we would have to talk to the proxy to tunnel, so don't bother
+        if (route.isTunnelled()) return;
+
+        ClientConnectionManager manager = client.getConnectionManager();
+        ManagedClientConnection connection;
+
+        try {
+            connection = manager.requestConnection(route, null).getConnection(connectTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted waiting for a pooled connection");
+        }
+
+        try {
+            if ( ! connection.isOpen()) {
+                HttpParams params = new BasicHttpParams();
+                HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+
+                connection.open(route, new BasicHttpContext(), new DefaultedHttpParams(params, client.getParams()));
+            }
+
+            connection.markReusable();
+
+        } catch (IOException e) {
+            connection.abortConnection();
+            throw e;
+
+        } finally {
+            manager.releaseConnection(connection, DEFAULT_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Closes idle connections, for instance when the app is backgrounded. */
+    public static synchronized void closeIdleConnections() {
+        if (sharedClient == null) return;
+
+        sharedClient.getConnectionManager().closeIdleConnections(0, TimeUnit.MILLISECONDS);
+    }
+
+    /** Tears down the shared client and all of its pooled connections (mostly for unit testing). */
+    public static synchronized void shutdown() {
+        if (sharedClient == null) return;
+
+        sharedClient.getConnectionManager().shutdown();
+        sharedClient = null;
+    }
+
+    private static DefaultHttpClient createClient() {
+        HttpParams params = createParams();
+
+        SchemeRegistry schemes = new SchemeRegistry();
+        schemes.register(new Scheme("http",  new PHTimedSocketFactory(PlainSocketFactory.getSocketFactory()), 80));
+        schemes.register(new Scheme("https", new PHTimedLayeredSocketFactory(SSLSocketFactory.getSocketFactory()), 443));
+
+        ClientConnectionManager manager = new ThreadSafeClientConnManager(params, schemes);
+
+        DefaultHttpClient client = new DefaultHttpClient(manager, params);
+
+        client.setRedirectHandler(new PHRedirectHandler());
+
+        client.setKeepAliveStrategy(new PHKeepAliveStrategy());
+
+        return client;
+    }
+
+    /** HTTP 1.1 with (circular) redirects turned on, default timeouts and the pool limits applied */
+    private static HttpParams createParams() {
+        HttpParams params = new BasicHttpParams();
+
+        params.setParameter(CoreProtocolPNames.PROTOCOL_VERSION, HttpVersion.HTTP_1_1);
+        params.setBooleanParameter(ClientPNames.ALLOW_CIRCULAR_REDIRECTS, true); //force circular redirects...
+        HttpClientParams.setRedirecting(params, true);
+
+        // requests override these per request type (see PHRetryPolicy) but nothing should ever hang forever
+        HttpConnectionParams.setConnectionTimeout(params, PHConfiguration.DEFAULT_CONNECT_TIMEOUT_MS);
+        HttpConnectionParams.setSoTimeout(params, PHConfiguration.DEFAULT_READ_TIMEOUT_MS);
+
+        ConnManagerParams.setMaxTotalConnections(params, MAX_TOTAL_CONNECTIONS);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_CONNECTIONS_PER_HOST));
+
+        return params;
+    }
+}
@@ -0,0 +1,207 @@
+package v2.com.playhaven.requests.base;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A deterministic {@link PHTransport} which never touches the network. Responses are
+ * registered per URL (ignoring the query string) and handed out in order; the last one
+ * registered for a URL keeps being returned once the others are used up. Unknown URLs
+ * get a 404. Every request is recorded so tests and benchmarks can check what was sent.
+ *
+ * Install it with {@link PHTransports#setDefaultTransport(PHTransport)} (or on a single
+ * connection with {@link PHAsyncRequest.PHHttpConn#setTransport(PHTransport)}).
+ */
+public class PHInMemoryTransport implements PHTransport {
+
+    private static final int MAX_FOLLOWED_REDIRECTS = 100;
+
+    /** A canned response (or failure) */
+    public static class Response {
+        private final int statusCode;
+
+        private final byte[] body;
+
+        private final HashMap<String, String> headers = new HashMap<String, String>();
+
+        private IOException failure;
+
+        private long latency;
+
+        public Response(int statusCode, byte[] body) {
+            this.statusCode = statusCode;
+            this.body       = body;
+        }
+
+        public Response(int statusCode, String body) {
+            this(statusCode, toBytes(body));
+        }
+
+        /** A response which fails with the given exception instead (like a dropped connection) */
+        public static Response failure(IOException failure) {
+            Response response = new Response(-1, (byte[]) null);
+            response.failure  = failure;
+            return response;
+        }
+
+        public Response setHeader(String name, String value) {
+            headers.put(name.toLowerCase(Locale.US), value);
+            return this;
+        }
+
+        /** Simulates a slow network by sleeping before responding */
+        public Response setLatency(long millis) {
+            this.latency = millis;
+            return this;
+        }
+
+        private static byte[] toBytes(String body) {
+            try {
+                return (body != null ? body.getBytes("UTF-8") : null);
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private final HashMap<String, LinkedList<Response>> responses = new HashMap<String, LinkedList<Response>>();
+
+    private final ArrayList<PHTransportRequest> requests = new ArrayList<PHTransportRequest>();
+
+    /** Queues a response for the given URL (the query string is ignored) */
+    public synchronized PHInMemoryTransport addResponse(String url, Response response) {
+        String key = stripQuery(url);
+
+        LinkedList<Response> queue = responses.get(key);
+
+        if (queue == null) {
+            queue = new LinkedList<Response>();
+            responses.put(key, queue);
+        }
+
+        queue.add(response);
+
+        return this;
+    }
+
+    /** Gets every request sent so far (in order) */
+    public synchronized List<PHTransportRequest> getRequests() {
+        return new ArrayList<PHTransportRequest>(requests);
+    }
+
+    public synchronized void reset() {
+        responses.clear();
+        requests.clear();
+    }
+
+    @Override
+    public PHTransportResponse execute(PHTransportRequest request, RedirectHandler redirects) throws IOException {
+        if (request.isAborted())
+            throw new InterruptedIOException("Request aborted");
+
+        record(request);
+
+        String url = request.getUrl();
+
+        for (int followed = 0; ; followed++) {
+            Response response = nextResponse(url);
+
+            if (response.latency > 0) {
+                try {
+                    Thread.sleep(response.latency);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Request interrupted");
+                }
+            }
+
+            if (request.isAborted())
+                throw new InterruptedIOException("Request aborted");
+
+            if (response.failure != null)
+                throw response.failure;
+
+            // let the handler see (and decide on) redirects just like with a real transport
+            String location = response.headers.get("location");
+
+            if (response.statusCode >= 300 && response.statusCode <= 307 && location != null && redirects != null &&
+                followed < MAX_FOLLOWED_REDIRECTS && redirects.shouldRedirect(response.statusCode, location)) {
+                url = location;
+                continue;
+            }
+
+            return new PHInMemoryResponse(response);
+        }
+    }
+
+    /** There is nothing to warm up */
+    @Override
+    public void preconnect(String url, int connectTimeout) {
+        // no network, no sockets
+    }
+
+    @Override
+    public boolean canPreconnect() {
+        return false;
+    }
+
+    private synchronized void record(PHTransportRequest request) {
+        requests.add(request);
+    }
+
+    private synchronized Response nextResponse(String url) {
+        LinkedList<Response> queue = responses.get(stripQuery(url));
+
+        if (queue == null || queue.isEmpty())
+            return new Response(404, "");
+
+        // keep handing out the last response
+        return (queue.size() > 1 ? queue.removeFirst() : queue.getFirst());
+    }
+
+    private static String stripQuery(String url) {
+        int query = url.indexOf('?');
+
+        return (query == -1 ? url : url.substring(0, query));
+    }
+
+    private static class PHInMemoryResponse implements PHTransportResponse {
+        private final Response response;
+
+        public PHInMemoryResponse(Response response) {
+            this.response = response;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return response.statusCode;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return response.headers.get(name.toLowerCase(Locale.US));
+        }
+
+        @Override
+        public long getContentLength() {
+            return (response.body != null ? response.body.length : -1);
+        }
+
+        @Override
+        public InputStream getBody() {
+            return (response.body != null ? new ByteArrayInputStream(response.body) : null);
+        }
+
+        @Override
+        public void close() {
+            // nothing to release
+        }
+    }
+}
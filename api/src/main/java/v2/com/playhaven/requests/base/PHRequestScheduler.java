@@ -0,0 +1,278 @@
+package v2.com.playhaven.requests.base;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import v2.com.playhaven.configuration.PHConfiguration;
+import v2.com.playhaven.listeners.PHConnectivityListener;
+import v2.com.playhaven.utils.PHConnectivityMonitor;
+import v2.com.playhaven.utils.PHLog;
+
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The SDK's own executor for {@link PHRequestTask}s. We used to rely on {@link android.os.AsyncTask}
+ * but its global executor is shared with the host game and, after Honeycomb, serial. A slow
+ * precache download would then hold up a user facing {@link v2.com.playhaven.requests.content.PHContentRequest}.
+ *
+ * Tasks wait in a priority queue in front of a small, bounded pool of named background threads.
+ * Higher priority work (see {@link Priority}) is always picked up before queued lower priority
+ * work, regardless of the order in which it was scheduled. Tasks with the same priority run in
+ * the order they were scheduled.
+ *
+ * While the {@link PHConnectivityMonitor} says we are offline the scheduler is paused: background
+ * tasks are held back in a side queue (instead of firing requests that are bound to fail) until we're
+ * back online, without tying up any of the threads. User facing tasks ({@link Priority#ContentDisplay}
+ * and {@link Priority#Open}) still run so that they fail right away rather than keep the user waiting.
+ *
+ * This class is a singleton, see {@link #getSharedScheduler()}.
+ */
+public class PHRequestScheduler {
+
+    /** The priority classes, from most to least urgent. */
+    public enum Priority {
+        ContentDisplay,
+        Open,
+        Metadata,
+        IAPTracking,
+        Prefetch,
+        CrashReport
+    }
+
+    /** The number of background threads */
+    public static final int POOL_SIZE = 3;
+
+    /** How long an idle background thread sticks around */
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /** The longest a task is held back while paused, in case we never hear that we're back online */
+    private static final long MAX_PAUSE_MS = 60 * 1000;
+
+    private static final String THREAD_NAME_PREFIX = "PlayHaven-Request-";
+
+    private static PHRequestScheduler sharedScheduler;
+
+    private final ThreadPoolExecutor executor;
+
+    /** The tasks held back while paused, in the same order as the executor's queue */
+    private final PriorityQueue<ScheduledTask> held = new PriorityQueue<ScheduledTask>();
+
+    private boolean paused;
+
+    /** Whether {@link #pauseDeadline} is pending */
+    private boolean pauseDeadlineScheduled;
+
+    private final Runnable pauseDeadline = new Runnable() {
+        @Override
+        public void run() {
+            PHLog.d("Still offline, releasing the held back requests anyway");
+
+            release();
+        }
+    };
+
+    /** Used for posting results back to the main thread */
+    private final Handler mainHandler;
+
+    /** Keeps FIFO ordering within a priority class */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /** Wraps a task so that the queue can order it. */
+    private static class ScheduledTask implements Runnable, Comparable<ScheduledTask> {
+
+        private final PHRequestTask<?, ?> task;
+
+        private final Priority priority;
+
+        private final long sequence;
+
+        public ScheduledTask(PHRequestTask<?, ?> task, long sequence) {
+            this.task     = task;
+            this.priority = task.getPriority();
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            task.runInBackground();
+        }
+
+        @Override
+        public int compareTo(ScheduledTask other) {
+            if (priority != other.priority)
+                return (priority.ordinal() < other.priority.ordinal() ? -1 : 1);
+
+            return (sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1));
+        }
+    }
+
+    /** Names our threads and drops them to background priority so that we never compete with the game loop. */
+    private static class RequestThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Runnable background = new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            };
+
+            return new Thread(background, THREAD_NAME_PREFIX + count.getAndIncrement());
+        }
+    }
+
+    public static synchronized PHRequestScheduler getSharedScheduler() {
+        if (sharedScheduler == null)
+            sharedScheduler = new PHRequestScheduler();
+
+        return sharedScheduler;
+    }
+
+    private PHRequestScheduler() {
+        executor = new ThreadPoolExecutor(POOL_SIZE,
+                                          POOL_SIZE,
+                                          KEEP_ALIVE_SECONDS,
+                                          TimeUnit.SECONDS,
+                                          new PriorityBlockingQueue<Runnable>(),
+                                          new RequestThreadFactory());
+
+        executor.allowCoreThreadTimeOut(true);
+
+        mainHandler = new Handler(Looper.getMainLooper());
+
+        PHConnectivityMonitor monitor = PHConnectivityMonitor.getSharedMonitor();
+
+        monitor.addListener(new PHConnectivityListener() {
+            @Override
+            public void onConnectivityChanged(PHConfiguration.ConnectionType type, boolean isConnected) {
+                setPaused( ! isConnected);
+            }
+        });
+
+        setPaused( ! monitor.isConnected());
+    }
+
+    /** Holds back (or releases) background tasks, see {@link PHConnectivityMonitor} */
+    void setPaused(boolean paused) {
+        synchronized (this) {
+            if (paused == this.paused) return;
+
+            this.paused = paused;
+        }
+
+        PHLog.d(paused ? "Offline, holding back queued requests" : "Online, resuming queued requests");
+
+        if ( ! paused) {
+            release();
+            return;
+        }
+
+        // whatever is already waiting for a thread is held back too
+        ArrayList<Runnable> queued = new ArrayList<Runnable>();
+
+        executor.getQueue().drainTo(queued);
+
+        for (Runnable runnable : queued) {
+            ScheduledTask scheduled = (ScheduledTask) runnable;
+
+            if ( ! hold(scheduled))
+                executor.execute(scheduled);
+        }
+    }
+
+    public synchronized boolean isPaused() {
+        return paused;
+    }
+
+    /** User facing work isn't held back, see the class comment */
+    private static boolean isUserFacing(Priority priority) {
+        return (priority == Priority.ContentDisplay || priority == Priority.Open);
+    }
+
+    /**
+     * Holds back the given task if we're paused and it may wait.
+     * @return false if the caller should hand the task to the executor
+     */
+    private synchronized boolean hold(ScheduledTask scheduled) {
+        if ( ! paused || isUserFacing(scheduled.priority)) return false;
+
+        held.add(scheduled);
+
+        // in case we never hear that we're back online
+        if ( ! pauseDeadlineScheduled) {
+            pauseDeadlineScheduled = true;
+
+            mainHandler.postDelayed(pauseDeadline, MAX_PAUSE_MS);
+        }
+
+        return true;
+    }
+
+    /** Hands every held back task to the executor */
+    private void release() {
+        ArrayList<ScheduledTask> released = new ArrayList<ScheduledTask>();
+
+        synchronized (this) {
+            while ( ! held.isEmpty())
+                released.add(held.poll());
+
+            if (pauseDeadlineScheduled) {
+                pauseDeadlineScheduled = false;
+
+                mainHandler.removeCallbacks(pauseDeadline);
+            }
+        }
+
+        for (ScheduledTask scheduled : released)
+            executor.execute(scheduled);
+    }
+
+    /** Queues the task behind any work of the same or higher priority. */
+    void schedule(PHRequestTask<?, ?> task) {
+        ScheduledTask scheduled = new ScheduledTask(task, sequence.getAndIncrement());
+
+        task.setScheduled(scheduled);
+
+        if ( ! hold(scheduled))
+            executor.execute(scheduled);
+    }
+
+    /**
+     * Removes the task from the queue (or the held back tasks) if it hasn't started yet.
+     * @return true if the task was still waiting and has now been removed
+     */
+    boolean unschedule(PHRequestTask<?, ?> task) {
+        Runnable scheduled = task.getScheduled();
+
+        if (scheduled == null) return false;
+
+        synchronized (this) {
+            if (held.remove(scheduled)) return true;
+        }
+
+        return executor.remove(scheduled);
+    }
+
+    /** Runs the given runnable on the main thread */
+    void postToMainThread(Runnable runnable) {
+        mainHandler.post(runnable);
+    }
+
+    /** The number of tasks waiting for a free thread or held back (mostly for unit testing) */
+    public int getQueuedCount() {
+        synchronized (this) {
+            return executor.getQueue().size() + held.size();
+        }
+    }
+}
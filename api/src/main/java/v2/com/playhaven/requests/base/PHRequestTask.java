@@ -0,0 +1,225 @@
+package v2.com.playhaven.requests.base;
+
+import v2.com.playhaven.metrics.PHRequestMetrics;
+import v2.com.playhaven.metrics.PHRequestTiming;
+import v2.com.playhaven.requests.crashreport.PHCrashReport;
+
+/**
+ * Replacement for {@link android.os.AsyncTask} which runs on the {@link PHRequestScheduler}
+ * instead of the executor shared with the host game. It deliberately mirrors the AsyncTask
+ * lifecycle ({@link #doInBackground}, {@link #onPostExecute}, {@link #onCancelled}, {@link #execute},
+ * {@link #cancel(boolean)}) so that subclasses and unit tests read the same.
+ *
+ * Each task has a {@link PHRequestScheduler.Priority} which decides its place in the queue.
+ * Like AsyncTask, a task can only be executed once.
+ *
+ * Tasks with a metrics name (see {@link #setMetricsName(String)}) record how long they spent
+ * queued and being delivered on the main thread and report a {@link PHRequestTiming} to
+ * {@link PHRequestMetrics} when they finish. Subclasses add the phases in between.
+ */
+public abstract class PHRequestTask<Params, Result> {
+
+    public enum Status {
+        PENDING,
+        RUNNING,
+        FINISHED
+    }
+
+    private volatile Status status = Status.PENDING;
+
+    private volatile boolean cancelled;
+
+    private PHRequestScheduler.Priority priority = PHRequestScheduler.Priority.Metadata;
+
+    private Params[] params;
+
+    /** Our entry in the scheduler queue */
+    private volatile Runnable scheduled;
+
+    /** The thread running {@link #doInBackground} (if any) */
+    private volatile Thread worker;
+
+    /** The request type we report metrics under (null means we don't) */
+    private String metricsName;
+
+    private volatile PHRequestTiming timing;
+
+    private volatile long queuedAt;
+
+    protected abstract Result doInBackground(Params... params);
+
+    /** Called on the main thread with the result unless the task was cancelled. */
+    protected void onPostExecute(Result result) {
+        // default implementation does nothing
+    }
+
+    /**
+     * Called from {@link #cancel(boolean)} on the cancelling thread while the task may still be running.
+     * Subclasses override to stop blocking work (such as aborting a network request). Must be thread safe.
+     */
+    protected void onCancelRequested() {
+        // default implementation does nothing
+    }
+
+    /** Called on the main thread instead of {@link #onPostExecute} if the task was cancelled. */
+    protected void onCancelled() {
+        // default implementation does nothing
+    }
+
+    public PHRequestScheduler.Priority getPriority() {
+        return priority;
+    }
+
+    /** Must be set before calling {@link #execute} to have any effect. */
+    public void setPriority(PHRequestScheduler.Priority priority) {
+        if (priority != null)
+            this.priority = priority;
+    }
+
+    public String getMetricsName() {
+        return metricsName;
+    }
+
+    /** Must be set before calling {@link #execute} to have any effect. */
+    public void setMetricsName(String metricsName) {
+        this.metricsName = metricsName;
+    }
+
+    /** The timing of the current execution or null if we aren't recording one */
+    protected PHRequestTiming getTiming() {
+        return timing;
+    }
+
+    public final Status getStatus() {
+        return status;
+    }
+
+    public final boolean isCancelled() {
+        return cancelled;
+    }
+
+    /** Queues this task on the shared {@link PHRequestScheduler}. */
+    public final PHRequestTask<Params, Result> execute(Params... params) {
+        if (status != Status.PENDING)
+            throw new IllegalStateException("Cannot execute task: the task has already been executed.");
+
+        status      = Status.RUNNING;
+        this.params = params;
+
+        if (metricsName != null) {
+            timing   = new PHRequestTiming(metricsName);
+            queuedAt = PHRequestTiming.now();
+        }
+
+        PHRequestScheduler.getSharedScheduler().schedule(this);
+
+        return this;
+    }
+
+    /**
+     * Cancels this task. A task still waiting in the queue is removed right away,
+     * otherwise it is up to {@link #doInBackground} to check {@link #isCancelled()}.
+     * @param mayInterruptIfRunning whether or not the thread running this task should be interrupted
+     * @return false if the task had already finished
+     */
+    public final boolean cancel(boolean mayInterruptIfRunning) {
+        if (status == Status.FINISHED || cancelled) return false;
+
+        cancelled = true;
+
+        if (PHRequestScheduler.getSharedScheduler().unschedule(this)) {
+            // it never started so we need to finish it ourselves
+            postResult(null);
+            return true;
+        }
+
+        try {
+            onCancelRequested();
+        } catch (Exception e) {
+            PHCrashReport.reportCrash(e, "PHRequestTask - cancel", PHCrashReport.Urgency.low);
+        }
+
+        Thread thread = worker;
+
+        if (mayInterruptIfRunning && thread != null)
+            thread.interrupt();
+
+        return true;
+    }
+
+    ////////////////////////////////////////////////
+    ////////// Called by PHRequestScheduler ////////
+
+    void setScheduled(Runnable scheduled) {
+        this.scheduled = scheduled;
+    }
+
+    Runnable getScheduled() {
+        return scheduled;
+    }
+
+    /** Runs on one of the scheduler's background threads */
+    void runInBackground() {
+        Result result = null;
+
+        worker = Thread.currentThread();
+
+        PHRequestTiming timing = this.timing;
+
+        if (timing != null) {
+            timing.add(PHRequestTiming.Phase.QueueWait, PHRequestTiming.now() - queuedAt);
+
+            // lets low level code (like the connection pool) attribute time to us
+            PHRequestTiming.setCurrent(timing);
+        }
+
+        try {
+            if ( ! cancelled)
+                result = doInBackground(params);
+
+        } catch (Exception e) { // swallow all exceptions
+            PHCrashReport.reportCrash(e, "PHRequestTask - runInBackground", PHCrashReport.Urgency.critical);
+
+        } finally {
+            worker = null;
+
+            PHRequestTiming.setCurrent(null);
+
+            // clear any interrupt from cancel() before the thread goes back to the pool
+            Thread.interrupted();
+        }
+
+        postResult(result);
+    }
+
+    private void postResult(final Result result) {
+        final long postedAt = PHRequestTiming.now();
+
+        PHRequestScheduler.getSharedScheduler().postToMainThread(new Runnable() {
+            @Override
+            public void run() {
+                status = Status.FINISHED;
+
+                if (cancelled)
+                    onCancelled();
+                else {
+                    onPostExecute(result);
+
+                    reportTiming(postedAt);
+                }
+            }
+        });
+    }
+
+    private void reportTiming(long postedAt) {
+        if (timing == null) return;
+
+        try {
+            timing.add(PHRequestTiming.Phase.Delivery, PHRequestTiming.now() - postedAt);
+
+            PHRequestMetrics.getSharedMetrics().record(timing);
+        } catch (Exception e) { // never let a metrics listener break the request
+            PHCrashReport.reportCrash(e, "PHRequestTask - reportTiming", PHCrashReport.Urgency.low);
+        }
+    }
+}
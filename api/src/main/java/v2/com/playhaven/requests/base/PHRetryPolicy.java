@@ -0,0 +1,112 @@
+package v2.com.playhaven.requests.base;
+
+import android.content.Context;
+import v2.com.playhaven.configuration.PHConfiguration;
+
+import java.util.Random;
+
+/**
+ * Timeouts and retry behaviour for a single {@link PHAsyncRequest}. Failed attempts
+ * are retried after an exponentially growing delay with "full jitter" (a random delay
+ * between zero and the exponential bound) so that many devices coming back online at
+ * once don't hammer the server in lock step.
+ *
+ * Only idempotent requests are ever retried (see {@link PHAsyncRequest#setIdempotent(boolean)}).
+ *
+ * Policies are immutable. Use {@link #fromConfiguration(Context, String)} to pick up the
+ * per request type settings from {@link PHConfiguration}.
+ */
+public class PHRetryPolicy {
+
+    /** A single attempt with the default timeouts */
+    public static final PHRetryPolicy NO_RETRY = new PHRetryPolicy(PHConfiguration.DEFAULT_CONNECT_TIMEOUT_MS,
+                                                                   PHConfiguration.DEFAULT_READ_TIMEOUT_MS,
+                                                                   1,
+                                                                   PHConfiguration.DEFAULT_RETRY_BASE_DELAY_MS,
+                                                                   PHConfiguration.DEFAULT_RETRY_MAX_DELAY_MS);
+
+    private static final Random random = new Random();
+
+    private final int connectTimeout;
+
+    private final int readTimeout;
+
+    private final int maxAttempts;
+
+    private final int baseDelay;
+
+    private final int maxDelay;
+
+    /**
+     * @param connectTimeout milliseconds to wait for a connection (0 means forever)
+     * @param readTimeout milliseconds to wait between bytes on the socket (0 means forever)
+     * @param maxAttempts the total number of attempts including the first
+     * @param baseDelay the bound on the delay (ms) before the first retry
+     * @param maxDelay the largest bound (ms) the delay can grow to
+     */
+    public PHRetryPolicy(int connectTimeout, int readTimeout, int maxAttempts, int baseDelay, int maxDelay) {
+        this.connectTimeout = Math.max(0, connectTimeout);
+        this.readTimeout    = Math.max(0, readTimeout);
+        this.maxAttempts    = Math.max(1, maxAttempts);
+        this.baseDelay      = Math.max(0, baseDelay);
+        this.maxDelay       = Math.max(this.baseDelay, maxDelay);
+    }
+
+    /** Reads the policy for the given request type (such as "content") from the configuration. */
+    public static PHRetryPolicy fromConfiguration(Context context, String requestType) {
+        PHConfiguration config = new PHConfiguration();
+
+        return new PHRetryPolicy(config.getConnectTimeout(context, requestType),
+                                 config.getReadTimeout(context, requestType),
+                                 config.getMaxAttempts(context, requestType),
+                                 config.getRetryBaseDelay(context, requestType),
+                                 config.getRetryMaxDelay(context, requestType));
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /** Whether or not we may make another attempt after the given (1 based) attempt */
+    public boolean canRetry(int attempt) {
+        return attempt < maxAttempts;
+    }
+
+    /**
+     * Gets the delay before the next attempt.
+     * @param attempt the (1 based) attempt which just failed
+     * @return a random delay (ms) between 0 and min(maxDelay, baseDelay * 2^(attempt - 1))
+     */
+    public long getRetryDelay(int attempt) {
+        long bound = baseDelay;
+
+        for (int i = 1; i < attempt && bound < maxDelay; i++)
+            bound *= 2;
+
+        bound = Math.min(bound, maxDelay);
+
+        if (bound <= 0) return 0;
+
+        synchronized (random) {
+            return (long) (random.nextDouble() * bound);
+        }
+    }
+
+    /** Whether or not the given HTTP status is worth retrying (the server or a proxy was temporarily unavailable) */
+    public static boolean isRetryableStatus(int responseCode) {
+        return responseCode == 408 ||
+               responseCode == 429 ||
+               responseCode == 500 ||
+               responseCode == 502 ||
+               responseCode == 503 ||
+               responseCode == 504;
+    }
+}
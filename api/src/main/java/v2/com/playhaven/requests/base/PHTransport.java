@@ -0,0 +1,58 @@
+package v2.com.playhaven.requests.base;
+
+import java.io.IOException;
+
+/**
+ * The HTTP stack underneath {@link PHAsyncRequest.PHHttpConn}. We ship three:
+ * <ul>
+ *     <li>{@link PHApacheTransport} on top of the pooled Apache client (see {@link PHHttpClientPool})</li>
+ *     <li>{@link PHURLConnectionTransport} on top of {@link java.net.HttpURLConnection} which pools
+ *     connections and handles gzip transparently on newer versions of android</li>
+ *     <li>{@link PHInMemoryTransport} which never touches the network and is meant for testing and benchmarking</li>
+ * </ul>
+ *
+ * The process-wide transport is {@link PHApacheTransport} unless replaced, see {@link PHTransports#getDefaultTransport()}.
+ * Implementations must be thread safe since a single instance serves every request.
+ */
+public interface PHTransport {
+
+    /**
+     * Decides whether or not to follow a redirect. Implemented by {@link PHAsyncRequest.PHHttpConn}
+     * which keeps track of (and limits) the redirects for its request.
+     */
+    public interface RedirectHandler {
+        /**
+         * @param responseCode the redirect status
+         * @param location the raw value of the Location header
+         * @return true if the transport should follow the redirect, false to return the redirect response as is
+         */
+        public boolean shouldRedirect(int responseCode, String location);
+    }
+
+    /**
+     * Executes the request on the calling thread. The request may be aborted from any
+     * thread (see {@link PHTransportRequest#abort()}) which makes this method (or reading
+     * the body) fail with an {@link IOException}.
+     *
+     * @param request the request to send
+     * @param redirects decides which redirects to follow (may be null to never follow any)
+     * @return the response whose body must be closed by the caller
+     */
+    public PHTransportResponse execute(PHTransportRequest request, RedirectHandler redirects) throws IOException;
+
+    /**
+     * Resolves the host of the given url and leaves an open (idle) connection to it in the pool
+     * so that the next request to that host starts on a warm socket (see {@link PHConnectionWarmer}).
+     * Called on a background thread.
+     *
+     * @param url any url on the host to warm up
+     * @param connectTimeout how long (ms) to wait for the connection
+     */
+    public void preconnect(String url, int connectTimeout) throws IOException;
+
+    /**
+     * Whether or not {@link #preconnect(String, int)} can open a bare connection. Transports which
+     * could only warm up by sending a real request return false and aren't asked to warm anything.
+     */
+    public boolean canPreconnect();
+}
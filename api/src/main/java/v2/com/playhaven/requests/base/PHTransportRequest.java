@@ -0,0 +1,125 @@
+package v2.com.playhaven.requests.base;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A transport independent HTTP request (see {@link PHTransport}). Only GET and POST
+ * are supported since those are all the PlayHaven API uses.
+ */
+public class PHTransportRequest {
+
+    public static final String GET  = "GET";
+
+    public static final String POST = "POST";
+
+    private final String method;
+
+    private final String url;
+
+    private final LinkedHashMap<String, String> headers = new LinkedHashMap<String, String>();
+
+    private byte[] body;
+
+    private String contentType;
+
+    private int connectTimeout;
+
+    private int readTimeout;
+
+    private volatile boolean aborted;
+
+    /** Installed by the transport to tear down the underlying connection */
+    private volatile Runnable abortAction;
+
+    public PHTransportRequest(String method, String url) {
+        this.method = method;
+        this.url    = url;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /** Sets (or replaces) the given header */
+    public void setHeader(String name, String value) {
+        headers.put(name, value);
+    }
+
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    public Map<String, String> getHeaders() {
+        return Collections.unmodifiableMap(headers);
+    }
+
+    /** Sets the body of a POST */
+    public void setBody(byte[] body, String contentType) {
+        this.body        = body;
+        this.contentType = contentType;
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /** @param millis how long to wait for a connection (0 means forever) */
+    public void setConnectTimeout(int millis) {
+        this.connectTimeout = millis;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /** @param millis how long to wait for data on the socket (0 means forever) */
+    public void setReadTimeout(int millis) {
+        this.readTimeout = millis;
+    }
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    ////////////////////////////////////////////////
+    ///////////////// Aborting /////////////////////
+
+    /** Aborts the request from any thread, closing the underlying connection (if any) */
+    public void abort() {
+        aborted = true;
+
+        Runnable action = abortAction;
+
+        if (action != null)
+            action.run();
+    }
+
+    public boolean isAborted() {
+        return aborted;
+    }
+
+    /**
+     * Called by the transport before it starts talking to the network. If the request
+     * has already been aborted we bail right away, otherwise any later {@link #abort()}
+     * runs the given action.
+     */
+    public void setAbortAction(Runnable action) throws IOException {
+        abortAction = action;
+
+        // checked after publishing the action so that a concurrent abort() can't be missed
+        if (aborted)
+            throw new InterruptedIOException("Request aborted");
+    }
+}
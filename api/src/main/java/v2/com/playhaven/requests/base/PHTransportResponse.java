@@ -0,0 +1,25 @@
+package v2.com.playhaven.requests.base;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The response of a {@link PHTransport}. The caller must {@link #close()} it
+ * (whether or not the body was read) so the connection can go back to the pool.
+ */
+public interface PHTransportResponse {
+
+    public int getStatusCode();
+
+    /** Gets the first value of the given (case insensitive) header or null */
+    public String getHeader(String name);
+
+    /** The length of the body or -1 if unknown */
+    public long getContentLength();
+
+    /** The body (may be null if there is none) */
+    public InputStream getBody() throws IOException;
+
+    /** Releases the connection, draining (or dropping) whatever is left of the body */
+    public void close() throws IOException;
+}
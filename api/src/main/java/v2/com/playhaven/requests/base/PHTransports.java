@@ -0,0 +1,40 @@
+package v2.com.playhaven.requests.base;
+
+/**
+ * Picks the process-wide {@link PHTransport}. The default is {@link PHApacheTransport}: it runs on the
+ * shared pool in {@link PHHttpClientPool} (keep-alive, per route limits, pre-connecting) which also
+ * reports the connect phase of every request. {@link PHURLConnectionTransport} has none of those and
+ * is only used if set with {@link #setDefaultTransport(PHTransport)}.
+ *
+ * Tests and benchmarks can swap in a {@link PHInMemoryTransport} with {@link #setDefaultTransport(PHTransport)}.
+ */
+public class PHTransports {
+
+    /** Follows the usual redirects (like a browser would), for requests without a {@link PHAsyncRequest.PHHttpConn} */
+    public static final PHTransport.RedirectHandler FOLLOW_REDIRECTS = new PHTransport.RedirectHandler() {
+        @Override
+        public boolean shouldRedirect(int responseCode, String location) {
+            return (responseCode == 301 || responseCode == 302 || responseCode == 303 || responseCode == 307);
+        }
+    };
+
+    private static PHTransport defaultTransport;
+
+    /** Gets the transport new connections use, creating the default one on first use. */
+    public static synchronized PHTransport getDefaultTransport() {
+        if (defaultTransport == null)
+            defaultTransport = createPlatformTransport();
+
+        return defaultTransport;
+    }
+
+    /** Overrides the transport for every new connection (null goes back to the platform default). */
+    public static synchronized void setDefaultTransport(PHTransport transport) {
+        defaultTransport = transport;
+    }
+
+    /** The transport we use unless told otherwise (see the class comment) */
+    public static PHTransport createPlatformTransport() {
+        return new PHApacheTransport();
+    }
+}
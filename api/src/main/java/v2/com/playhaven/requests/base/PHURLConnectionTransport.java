@@ -0,0 +1,163 @@
+package v2.com.playhaven.requests.base;
+
+import v2.com.playhaven.metrics.PHRequestTiming;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * {@link PHTransport} on top of {@link HttpURLConnection}. From Gingerbread on this is the
+ * HTTP stack android recommends: it keeps its own pool of keep-alive connections and (from
+ * Gingerbread) transparently asks for and decodes gzip unless we set Accept-Encoding ourselves.
+ * It isn't the default (see {@link PHTransports}): it bypasses our pool and its connect metrics.
+ *
+ * We follow redirects by hand so that the {@link PHTransport.RedirectHandler} gets
+ * to decide on each one, exactly like it does with {@link PHApacheTransport}.
+ */
+public class PHURLConnectionTransport implements PHTransport {
+
+    /** Same limit as the Apache client so a redirect loop can't go on forever */
+    private static final int MAX_FOLLOWED_REDIRECTS = 100;
+
+    @Override
+    public PHTransportResponse execute(PHTransportRequest request, RedirectHandler redirects) throws IOException {
+        URL url = new URL(request.getUrl());
+
+        for (int followed = 0; ; followed++) {
+            // like the Apache client we turn every redirect into a plain GET
+            boolean isPost = (followed == 0 && PHTransportRequest.POST.equals(request.getMethod()));
+
+            final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+
+            request.setAbortAction(new Runnable() {
+                @Override
+                public void run() {
+                    // closes the socket which fails any blocked read on the worker thread
+                    connection.disconnect();
+                }
+            });
+
+            connection.setConnectTimeout(request.getConnectTimeout());
+            connection.setReadTimeout(request.getReadTimeout());
+            connection.setInstanceFollowRedirects(false);
+            connection.setUseCaches(false);
+
+            for (Map.Entry<String, String> header : request.getHeaders().entrySet())
+                connection.setRequestProperty(header.getKey(), header.getValue());
+
+            byte[] body = request.getBody();
+
+            if (isPost) {
+                connection.setRequestMethod(PHTransportRequest.POST);
+
+                if (body != null) {
+                    connection.setDoOutput(true);
+                    connection.setFixedLengthStreamingMode(body.length);
+
+                    if (request.getContentType() != null)
+                        connection.setRequestProperty("Content-Type", request.getContentType());
+                }
+            }
+
+            connect(connection);
+
+            if (isPost && body != null) {
+                OutputStream out = connection.getOutputStream();
+                out.write(body);
+                out.close();
+            }
+
+            int responseCode = connection.getResponseCode();
+
+            if (responseCode >= 300 && responseCode <= 307 && followed < MAX_FOLLOWED_REDIRECTS && redirects != null) {
+                String location = connection.getHeaderField("Location");
+
+                if (location != null && redirects.shouldRedirect(responseCode, location)) {
+                    new PHURLConnectionResponse(connection, responseCode).close();
+
+                    url = new URL(url, location);
+                    continue;
+                }
+            }
+
+            return new PHURLConnectionResponse(connection, responseCode);
+        }
+    }
+
+    /**
+     * {@link HttpURLConnection} has no way to open a bare socket and warming up with a real
+     * request costs a round trip (and radio time) of its own, so we don't warm anything.
+     */
+    @Override
+    public void preconnect(String url, int connectTimeout) {
+        // see canPreconnect()
+    }
+
+    @Override
+    public boolean canPreconnect() {
+        return false;
+    }
+
+    /** Connects explicitly so that we can report the connect time (close to nothing for a pooled connection) */
+    private static void connect(HttpURLConnection connection) throws IOException {
+        long start = PHRequestTiming.now();
+
+        connection.connect();
+
+        PHRequestTiming timing = PHRequestTiming.getCurrent();
+
+        if (timing != null)
+            timing.add(PHRequestTiming.Phase.Connect, PHRequestTiming.now() - start);
+    }
+
+    private static class PHURLConnectionResponse implements PHTransportResponse {
+        private final HttpURLConnection connection;
+
+        private final int responseCode;
+
+        private InputStream body;
+
+        public PHURLConnectionResponse(HttpURLConnection connection, int responseCode) {
+            this.connection   = connection;
+            this.responseCode = responseCode;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return responseCode;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return connection.getHeaderField(name);
+        }
+
+        @Override
+        public long getContentLength() {
+            return connection.getContentLength();
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            if (body == null) {
+                // HttpURLConnection throws for error codes so we ask for the error body instead
+                body = (responseCode >= 400 ? connection.getErrorStream() : connection.getInputStream());
+            }
+
+            return body;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // closing the (fully read) stream hands the socket back to the pool
+            InputStream in = getBody();
+
+            if (in != null)
+                in.close();
+        }
+    }
+}
@@ -1,9 +1,11 @@
 package v2.com.playhaven.requests.content;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Random;
+import java.util.TreeMap;
 
 import org.json.JSONObject;
 
@@ -20,6 +22,7 @@ import v2.com.playhaven.listeners.PHRewardListener;
 import v2.com.playhaven.model.PHContent;
 import v2.com.playhaven.model.PHError;
 import v2.com.playhaven.requests.base.PHAPIRequest;
+import v2.com.playhaven.requests.base.PHRequestScheduler;
 import v2.com.playhaven.requests.crashreport.PHCrashReport;
 import v2.com.playhaven.requests.open.PHSession;
 import v2.com.playhaven.views.interstitial.PHCloseButton;
@@ -63,6 +66,9 @@ public class PHContentRequest extends PHAPIRequest implements ContentRequester {
 	public String placement;
 	
 	private PHContent content;
+
+    /** The content built from the response on the background thread (see {@link #prepareRequestSuccess(JSONObject)}) */
+    private PHContent preparedContent;
 	
 	public String contentTag; 
 
@@ -103,6 +109,24 @@ public class PHContentRequest extends PHAPIRequest implements ContentRequester {
 	
 	private PHContentRequestListener content_listener 	= null;
 
+    /**
+     * Content requests currently waiting on the network, keyed by what they ask for
+     * (see {@link #getInFlightKey(Context)}). Each entry holds the requests which attached themselves
+     * to the one actually making the network call instead of sending their own.
+     * Only the request making the call displays the content (or, if it was canceled, the first waiting
+     * request which wanted to display it), see {@link #receiveSharedContent(PHContent)}.
+     */
+    private static final HashMap<String, ArrayList<PHContentRequest>> inFlightRequests = new HashMap<String, ArrayList<PHContentRequest>>();
+
+    /** Whether or not this request is the one making the network call for its placement */
+    private boolean isInFlightLeader;
+
+    /** The key we registered (or attached) under. We remember it since the target state can still change. */
+    private String inFlightKey;
+
+    /** Set if this request was canceled while others were still waiting on its network call */
+    private boolean canceledWhileShared;
+
     ////////////////////////////////////////////////
     /////////////// Constructors //////////////////
     public PHContentRequest(String placement) {
@@ -203,6 +227,23 @@ public class PHContentRequest extends PHAPIRequest implements ContentRequester {
 		return super.createAPIURL(context, "/v3/publisher/content/");
 	}
 
+	/** Content responses can be large so we decode them straight off the wire */
+	@Override
+	public boolean shouldStreamResponse() {
+		return true;
+	}
+
+	/** The publisher is waiting to show this so it jumps ahead of everything else */
+	@Override
+	public PHRequestScheduler.Priority getPriority() {
+		return PHRequestScheduler.Priority.ContentDisplay;
+	}
+
+	@Override
+	public String getMetricsName() {
+		return "content";
+	}
+
 	public void setCurrentContentState(PHRequestState state) {
 	    if (state      == null) return;
 		if (this.currentContentState == null) this.currentContentState = state; //guard against null edge case..
@@ -288,7 +329,15 @@ public class PHContentRequest extends PHAPIRequest implements ContentRequester {
      */
 	private void loadContent(Context context) {
 		setCurrentContentState(PHRequestState.Preloading);
-		super.send(context); // now actually send the request
+
+		// if an identical request is already on its way, simply wait for its response
+		if ( ! attachToInFlightRequest(context)) {
+			super.send(context); // now actually send the request
+
+			// the request might not have gone out (no token/secret)
+			if (getConnection() == null)
+				releaseWaitingRequests();
+		}
 		
 		// We kick off the background network request and
 		// then notify the listener that we hvae sent the interstitial request.
@@ -445,9 +494,111 @@ public class PHContentRequest extends PHAPIRequest implements ContentRequester {
 	@Override
 	public void finish() {
 		setCurrentContentState(PHRequestState.Done);
+
+		if (detachFromInFlightRequest()) return;
+
+		// others are waiting on our network call so we let it finish for them
+		if (keepCallForWaitingRequests()) {
+			canceledWhileShared = true;
+			return;
+		}
 		
 		super.finish();
 	}
+
+	/////////////////////////////////////////////////
+	///////// Coalescing In-Flight Requests /////////
+
+	/** Parameters which differ between otherwise identical requests (the session time) */
+	private static final String[] IN_FLIGHT_IGNORED_PARAMS = {"stime"};
+
+	/**
+	 * Identical requests (same type and same additional parameters, which hold the placement
+	 * and whether we preload) share one network call.
+	 */
+	private String getInFlightKey(Context context) {
+		Hashtable<String, String> params = getAdditionalParams(context);
+
+		TreeMap<String, String> sorted = (params != null ? new TreeMap<String, String>(params) : new TreeMap<String, String>());
+
+		for (String ignored : IN_FLIGHT_IGNORED_PARAMS)
+			sorted.remove(ignored);
+
+		return getClass().getName() + sorted.toString();
+	}
+
+	/**
+	 * Attaches this request to an identical one already waiting on the network. If there is none,
+	 * this request becomes the one which actually sends.
+	 * @return true if we attached to another request and should not send ourselves
+	 */
+	private boolean attachToInFlightRequest(Context context) {
+		inFlightKey = getInFlightKey(context);
+
+		synchronized (inFlightRequests) {
+			ArrayList<PHContentRequest> waiting = inFlightRequests.get(inFlightKey);
+
+			if (waiting != null) {
+				PHStringUtil.log("Attaching content request to the one already in flight for placement: " + placement);
+				waiting.add(this);
+				return true;
+			}
+
+			inFlightRequests.put(inFlightKey, new ArrayList<PHContentRequest>());
+			isInFlightLeader = true;
+			return false;
+		}
+	}
+
+	/**
+	 * Removes this request from the requests waiting on another one's network call.
+	 * @return true if this request was waiting (and thus has no network call of its own)
+	 */
+	private boolean detachFromInFlightRequest() {
+		if (isInFlightLeader || inFlightKey == null) return false;
+
+		synchronized (inFlightRequests) {
+			ArrayList<PHContentRequest> waiting = inFlightRequests.get(inFlightKey);
+
+			return (waiting != null && waiting.remove(this));
+		}
+	}
+
+	/**
+	 * Called when we're canceled. A canceled network call never reports back so unless others
+	 * are waiting on it we stop being the request making it (later requests mustn't attach to it).
+	 * @return true if others are waiting on our network call and it has to go on for them
+	 */
+	private boolean keepCallForWaitingRequests() {
+		if ( ! isInFlightLeader) return false;
+
+		synchronized (inFlightRequests) {
+			ArrayList<PHContentRequest> waiting = inFlightRequests.get(inFlightKey);
+
+			if (waiting != null && waiting.size() > 0) return true;
+
+			inFlightRequests.remove(inFlightKey);
+			isInFlightLeader = false;
+
+			return false;
+		}
+	}
+
+	/**
+	 * Ends our network call for the placement and hands back the requests which were waiting on it.
+	 * @return the waiting requests (empty if we are not the request making the call)
+	 */
+	private ArrayList<PHContentRequest> releaseWaitingRequests() {
+		if ( ! isInFlightLeader) return new ArrayList<PHContentRequest>();
+
+		isInFlightLeader = false;
+
+		synchronized (inFlightRequests) {
+			ArrayList<PHContentRequest> waiting = inFlightRequests.remove(inFlightKey);
+
+			return (waiting != null ? waiting : new ArrayList<PHContentRequest>());
+		}
+	}
 	
 	
 	/////////////////////////////////////////////////
@@ -469,14 +620,84 @@ public class PHContentRequest extends PHAPIRequest implements ContentRequester {
 	
 	@Override
 	public void handleRequestFailure(PHError error) {
+		for (PHContentRequest waiting : releaseWaitingRequests())
+			waiting.handleRequestFailure(error);
+
+		if (canceledWhileShared) return;
+
 		if (content_listener != null)
 			content_listener.onFailedToDisplayContent(this, new PHError("Could not get interstitial because: " + error.getMessage()));
 	}
 	
+    /** Checks whether or not the server sent us anything to display */
+    private boolean isEmptyResponse(JSONObject response) {
+        return (JSONObject.NULL.equals(response) || response.length() == 0 || response.equals("undefined"));
+    }
+
+	/**
+	 * Builds the {@link PHContent} while we are still on the background thread.
+	 */
+	@Override
+	protected void prepareRequestSuccess(JSONObject response) {
+		preparedContent = (isEmptyResponse(response) ? null : new PHContent(response));
+	}
+
 	@Override
 	public void handleRequestSuccess(JSONObject response) {
+	    // use the content built in the background if we have it
+	    PHContent received = preparedContent;
+
+	    preparedContent = null;
+
+	    if (received == null && ! isEmptyResponse(response))
+	    	received = new PHContent(response);
+
+	    ArrayList<PHContentRequest> attached = releaseWaitingRequests();
+
+	    // we won't display it anymore so the first of them which wanted to does so in our place
+	    PHContentRequest displaying = (canceledWhileShared ? findDisplayingRequest(attached) : null);
+
+	    // identical requests which attached to ours get the very same content
+	    for (PHContentRequest waiting : attached) {
+	    	if (waiting == displaying)
+	    		waiting.receiveContent(received);
+	    	else
+	    		waiting.receiveSharedContent(received);
+	    }
+
+	    if (canceledWhileShared) return;
+
+	    receiveContent(received);
+	}
+
+	/** The first of the given requests which was sent to display its content (rather than to preload it) */
+	private static PHContentRequest findDisplayingRequest(ArrayList<PHContentRequest> requests) {
+		for (PHContentRequest request : requests) {
+			if (request.targetState == PHRequestState.DisplayingContent)
+				return request;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Receives the content of the identical request we attached to. Only that request displays it:
+	 * we stop at {@link PHRequestState#Preloaded} so that the same interstitial doesn't open once per
+	 * request. Calling {@link #send(Context)} again displays it.
+	 */
+	private void receiveSharedContent(PHContent received) {
+		targetState = PHRequestState.Preloaded;
+
+		receiveContent(received);
+	}
+
+	/**
+	 * Moves on to the next state with the content we received (either from our own
+	 * network call or from the identical request we attached to).
+	 */
+	private void receiveContent(PHContent received) {
 		// response might be empty. This isn't an error, the server simply might not have something to display.
-	    if (JSONObject.NULL.equals(response) || response.length() == 0 || response.equals("undefined")) {
+	    if (received == null) {
 	    	
 	    	// notify the listener we have no interstitial available
 	    	if (content_listener != null)
@@ -485,7 +706,7 @@ public class PHContentRequest extends PHAPIRequest implements ContentRequester {
 	    	return;
 	    }
 	    
-	    content = new PHContent(response);
+	    content = received;
 
         // if the interstitial has no template URL then we are done.
 		if (content.url == null) {
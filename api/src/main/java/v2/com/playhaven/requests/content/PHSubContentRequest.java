@@ -8,6 +8,7 @@ import org.json.JSONObject;
 import android.content.Context;
 
 import v2.com.playhaven.requests.base.PHAPIRequest;
+import v2.com.playhaven.requests.base.PHRequestScheduler;
 import v2.com.playhaven.utils.PHStringUtil;
 
 /**
@@ -82,6 +83,23 @@ public class PHSubContentRequest extends PHAPIRequest {
             listener.onSubContentRequestFailed(this, error);
     }
 
+	/** Sub-requests return whole content units so we decode them straight off the wire */
+	@Override
+	public boolean shouldStreamResponse() {
+		return true;
+	}
+
+	/** The interstitial on screen is waiting on this sub-request */
+	@Override
+	public PHRequestScheduler.Priority getPriority() {
+		return PHRequestScheduler.Priority.ContentDisplay;
+	}
+
+	@Override
+	public String getMetricsName() {
+		return "subcontent";
+	}
+
 	@Override
 	public String getURL(Context context) {
 
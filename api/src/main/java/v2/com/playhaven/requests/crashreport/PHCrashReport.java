@@ -3,6 +3,7 @@ package v2.com.playhaven.requests.crashreport;
 import android.content.Context;
 import v2.com.playhaven.configuration.PHConfiguration;
 import v2.com.playhaven.requests.base.PHAPIRequest;
+import v2.com.playhaven.requests.base.PHRequestScheduler;
 import v2.com.playhaven.requests.base.PHAsyncRequest;
 
 import java.io.PrintWriter;
@@ -111,6 +112,23 @@ public class PHCrashReport extends PHAPIRequest {
 	public String baseURL(Context context) {
 		return super.createAPIURL(context, "/v3/publisher/crash/");
 	}
+
+	/** Crash reports always go last */
+	@Override
+	public PHRequestScheduler.Priority getPriority() {
+		return PHRequestScheduler.Priority.CrashReport;
+	}
+
+	@Override
+	public String getMetricsName() {
+		return "crash";
+	}
+
+	/** Crash reports are never urgent */
+	@Override
+	public boolean isDeferrable() {
+		return true;
+	}
 	
 	@Override
 	public Hashtable<String, String> getAdditionalParams(Context context) {
@@ -13,15 +13,26 @@ import v2.com.playhaven.listeners.PHPrefetchListener;
 import v2.com.playhaven.listeners.PHPrefetchTaskListener;
 import v2.com.playhaven.model.PHError;
 import v2.com.playhaven.requests.base.PHAPIRequest;
+import v2.com.playhaven.requests.base.PHConnectionWarmer;
+import v2.com.playhaven.requests.base.PHRequestScheduler;
+import v2.com.playhaven.requests.base.PHRetryPolicy;
 import v2.com.playhaven.requests.crashreport.PHCrashReport;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class PHOpenRequest extends PHAPIRequest implements PHPrefetchTaskListener {
 	private ConcurrentLinkedQueue<PHPrefetchTask> prefetchTasks = new ConcurrentLinkedQueue<PHPrefetchTask>();
+
+	/** How many prefetches download side by side, one scheduler thread is left for user facing requests */
+	public static final int MAX_CONCURRENT_PREFETCHES = PHRequestScheduler.POOL_SIZE - 1;
+
+	/** The prefetches started and not done yet */
+	private final AtomicInteger runningPrefetches = new AtomicInteger();
 	
 	/**
      * This flag indicates whether or not we should precede with pre-caching after receiving a response or if
@@ -41,6 +52,9 @@ public class PHOpenRequest extends PHAPIRequest implements PHPrefetchTaskListene
 	private PHSession session;
 
     private PHConfiguration config;
+
+    /** The timeouts of the prefetches, read in {@link #send(Context)} since we have no context later */
+    private PHRetryPolicy prefetchPolicy = PHRetryPolicy.NO_RETRY;
 	
 	public void setPrefetchListener(PHPrefetchListener listener) {
 		this.prefetch_listener = listener;
@@ -86,6 +100,23 @@ public class PHOpenRequest extends PHAPIRequest implements PHPrefetchTaskListene
 	public String baseURL(Context context) {
 		return super.createAPIURL(context, "/v3/publisher/open/");
 	}
+
+	/** Decode the open response (and its precache list) straight off the wire */
+	@Override
+	public boolean shouldStreamResponse() {
+		return true;
+	}
+
+	/** Opens come right after content displays */
+	@Override
+	public PHRequestScheduler.Priority getPriority() {
+		return PHRequestScheduler.Priority.Open;
+	}
+
+	@Override
+	public String getMetricsName() {
+		return "open";
+	}
 	
 	@Override
 	public void send(Context context) {
@@ -94,6 +125,8 @@ public class PHOpenRequest extends PHAPIRequest implements PHPrefetchTaskListene
         // always have a context handle
         shouldPrecache = config.getShouldPrecache(context);
 
+        prefetchPolicy = PHRetryPolicy.fromConfiguration(context, "prefetch");
+
         // initialize the cache
         synchronized (PHOpenRequest.class) {
             if (shouldPrecache) {
@@ -148,6 +181,8 @@ public class PHOpenRequest extends PHAPIRequest implements PHPrefetchTaskListene
 
 			if (precached != null) {	
 				
+				ArrayList<String> urls = new ArrayList<String>();
+				
 				for (int i = 0; i < precached.length(); i++) {
 					String url = precached.optString(i);
 
@@ -155,19 +190,28 @@ public class PHOpenRequest extends PHAPIRequest implements PHPrefetchTaskListene
 					if (url != null) {
 						PHPrefetchTask task = new PHPrefetchTask();
 						task.setPrefetchListener(this);
+						task.setRetryPolicy(prefetchPolicy);
 
 						task.setURL(url);
 
+						urls.add(url);
 
 						prefetchTasks.add(task);
 					}
 					
 				}
+				
+				// keep the latest manifest around even if it doesn't fit in the cache budget
+				PHCache cache = PHCache.getSharedCache();
+				if (cache != null) cache.setPinnedUrls(urls);
+
+				// get sockets to the CDN hosts ready while the prefetches are queued
+				PHConnectionWarmer.warm(PHRequestScheduler.Priority.Prefetch, urls.toArray(new String[urls.size()]));
 			}
 			
 			// start fetching the pre-cached elements
 			if (startPrecachingImmediately)
-				startNextPrefetch();
+				startPrefetches();
 		}
 		
 		session.startAndReset();
@@ -178,11 +222,22 @@ public class PHOpenRequest extends PHAPIRequest implements PHPrefetchTaskListene
 		
 	}
 	
+	/** Starts queued prefetches until {@link #MAX_CONCURRENT_PREFETCHES} are running */
+	public void startPrefetches() {
+		while (runningPrefetches.get() < MAX_CONCURRENT_PREFETCHES && prefetchTasks.size() > 0)
+			startNextPrefetch();
+	}
+
 	public void startNextPrefetch() {
         PHStringUtil.log("Starting precache task with a total of: " + prefetchTasks.size());
 
-		if (prefetchTasks.size() > 0)
-            prefetchTasks.poll().execute();
+		PHPrefetchTask task = prefetchTasks.poll();
+
+		// the open response just came in so the radio is awake, no point in deferring
+		if (task != null) {
+			runningPrefetches.incrementAndGet();
+			task.execute();
+		}
 	}
 	
 	///////////////////////////////////////////////////////////
@@ -193,17 +248,20 @@ public class PHOpenRequest extends PHAPIRequest implements PHPrefetchTaskListene
 		try {
             PHStringUtil.log("Pre-cache task done. Starting next out of " + prefetchTasks.size());
 
+            int running = runningPrefetches.decrementAndGet();
+
             // if this is the last prefetch task finishing, notify the listener
-            if (prefetchTasks.size() == 0 && prefetch_listener != null) {
-                prefetch_listener.onPrefetchFinished(this);
+            if (prefetchTasks.size() == 0) {
+                if (running <= 0 && prefetch_listener != null)
+                    prefetch_listener.onPrefetchFinished(this);
 
                 return;
             }
 
 
-			// previous prefetch is finished, start the next one
-			if (prefetchTasks.size() > 0 && startPrecachingImmediately)
-				startNextPrefetch();
+			// a prefetch is finished, start the next one
+			if (startPrecachingImmediately)
+				startPrefetches();
 			
 		} catch (Exception e) { // swallow all exceptions
 			PHCrashReport.reportCrash(e, "PHOpenRequest - prefetchDone", PHCrashReport.Urgency.low);
@@ -1,30 +1,50 @@
 package v2.com.playhaven.requests.open;
 
-import android.os.AsyncTask;
 import v2.com.playhaven.cache.PHCache;
+import v2.com.playhaven.cache.PHCacheValidators;
 import v2.com.playhaven.requests.crashreport.PHCrashReport;
 import v2.com.playhaven.listeners.PHPrefetchTaskListener;
+import v2.com.playhaven.metrics.PHRequestTiming;
+import v2.com.playhaven.requests.base.PHRequestScheduler;
+import v2.com.playhaven.requests.base.PHRequestTask;
+import v2.com.playhaven.requests.base.PHRetryPolicy;
+import v2.com.playhaven.requests.base.PHTransportRequest;
+import v2.com.playhaven.requests.base.PHTransportResponse;
+import v2.com.playhaven.requests.base.PHTransports;
+import v2.com.playhaven.utils.PHConnectivityMonitor;
 import v2.com.playhaven.utils.PHStringUtil;
-import org.apache.http.Header;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
 
 import java.net.MalformedURLException;
 import java.net.URL;
 
 /**
  * Simple task to download a resource and store it in the {@link PHCache}.
+ * Prefetches run with {@link PHRequestScheduler.Priority#Prefetch} so that they never hold up user facing requests.
+ * Files which are already cached aren't downloaded again: we skip them while they're fresh and
+ * otherwise ask the server with a conditional GET (see {@link PHCacheValidators}).
  */
-public class PHPrefetchTask extends AsyncTask<Integer, Integer, Integer> {
+public class PHPrefetchTask extends PHRequestTask<Integer, Integer> {
 	
 	public URL url;
 
     private static final String GZIP_ENCODING = "gzip";
 
 	public PHPrefetchTaskListener listener;
+
+	/**
+	 * The timeouts to download with (see {@link #setRetryPolicy(PHRetryPolicy)}). A failed
+	 * prefetch isn't retried: the next open asks for the file again anyway.
+	 */
+	private PHRetryPolicy retryPolicy = PHRetryPolicy.NO_RETRY;
+
+	/** The download in progress (if any) so that cancelling can abort it */
+	private volatile PHTransportRequest activeRequest;
+
+	public PHPrefetchTask() {
+		setPriority(PHRequestScheduler.Priority.Prefetch);
+		setMetricsName("prefetch");
+	}
 	
 	///////////////////////////////////////////
 	//////////////// Accessors ///////////////
@@ -37,6 +57,15 @@ public class PHPrefetchTask extends AsyncTask<Integer, Integer, Integer> {
         return this.listener;
 
     }
+
+	/** Sets the timeouts to use, see {@link PHRetryPolicy#fromConfiguration(android.content.Context, String)} with "prefetch" */
+	public void setRetryPolicy(PHRetryPolicy retryPolicy) {
+		this.retryPolicy = (retryPolicy != null ? retryPolicy : PHRetryPolicy.NO_RETRY);
+	}
+
+	public PHRetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
 		
 	public URL getURL() {
 		return url;
@@ -59,54 +88,110 @@ public class PHPrefetchTask extends AsyncTask<Integer, Integer, Integer> {
 
         if (! PHCache.hasBeenInstalled()) return responseCode;
 
-		// Note: while HttpURLConnection might be simpler, we use the Apache
-		// libraries for easier testing with Robolectric
-
 		try {
-            // we carefully lock to ensure we're alone when using the cache
-			synchronized (PHCache.getSharedCache()) {
-                if (url == null) {
-                    return HttpStatus.SC_BAD_REQUEST;
-                }
-                
-                DefaultHttpClient client = new DefaultHttpClient();
-                HttpGet request = new HttpGet(url.toString());
-                request.addHeader("Accept-Encoding", "gzip");
-                
-                HttpResponse response = client.execute(request);
-                
-                responseCode = response.getStatusLine().getStatusCode();
-                if (responseCode != HttpStatus.SC_OK) {
-                    return responseCode;
-                }
-                
-                HttpEntity entity = response.getEntity();
-
-                // determine if the interstitial is compressed
-                Header contentEncoding = null;
-                try {
-                	contentEncoding = entity.getContentEncoding();
-                } catch (UnsupportedOperationException e){
-                	// robolectric (for testing) doesn't support this
-                }
-
-                boolean isCompressed = (contentEncoding == null) ? false : contentEncoding.getValue().equals(GZIP_ENCODING);
-
-                // stick this thing in the cache
-                PHStringUtil.log("Prefetch done....caching file");
-
-                PHCache.getSharedCache().cacheFile(url, entity.getContent(), isCompressed);
-			}
+            if (url == null) {
+                return HttpStatus.SC_BAD_REQUEST;
+            }
+            
+            PHCache cache = PHCache.getSharedCache();
+
+            PHCacheValidators cached = cache.getValidators(url);
+
+            if (cached != null && cached.isFresh()) {
+                PHStringUtil.log("Prefetch skipped, cached file is still fresh: " + url);
+                return HttpStatus.SC_NOT_MODIFIED;
+            }
+
+            PHTransportRequest request = new PHTransportRequest(PHTransportRequest.GET, url.toString());
+            request.setHeader("Accept-Encoding", "gzip");
+
+            if (cached != null && cached.getETag() != null)
+                request.setHeader("If-None-Match", cached.getETag());
+
+            if (cached != null && cached.getLastModified() != null)
+                request.setHeader("If-Modified-Since", cached.getLastModified());
+
+            request.setConnectTimeout(retryPolicy.getConnectTimeout());
+            request.setReadTimeout(retryPolicy.getReadTimeout());
+
+            activeRequest = request;
+
+            if (isCancelled()) return responseCode;
+
+            // we went offline while queued, don't wait for the connect timeout
+            if ( ! PHConnectivityMonitor.getSharedMonitor().isConnected()) return responseCode;
+            
+            PHRequestTiming timing = getTiming();
+            long connectBefore = (timing != null ? timing.getDuration(PHRequestTiming.Phase.Connect) : 0);
+            long start = PHRequestTiming.now();
+
+            // tests swap in a PHInMemoryTransport with PHTransports.setDefaultTransport
+            PHTransportResponse response = PHTransports.getDefaultTransport().execute(request, PHTransports.FOLLOW_REDIRECTS);
+
+            if (timing != null) {
+                long connect = timing.getDuration(PHRequestTiming.Phase.Connect) - connectBefore;
+                timing.add(PHRequestTiming.Phase.FirstByte, PHRequestTiming.now() - start - connect);
+            }
+            
+            responseCode = response.getStatusCode();
+
+            PHCacheValidators validators = PHCacheValidators.fromHeaders(response.getHeader("ETag"),
+                                                                         response.getHeader("Last-Modified"),
+                                                                         response.getHeader("Cache-Control"));
+
+            // we asked with the validators of the file we have and it's still good
+            if (responseCode == HttpStatus.SC_NOT_MODIFIED && cached != null) {
+                response.close();
+
+                if (cache.markRevalidated(url, cached.updatedWith(validators)))
+                    PHStringUtil.log("Prefetch not modified, keeping cached file: " + url);
+
+                return responseCode;
+            }
+
+            if (responseCode != HttpStatus.SC_OK || response.getBody() == null) {
+                // release the pooled connection before bailing
+                response.close();
+
+                return responseCode;
+            }
+
+            // determine if the interstitial is compressed
+            String contentEncoding = response.getHeader("Content-Encoding");
+
+            boolean isCompressed = (contentEncoding == null) ? false : contentEncoding.equals(GZIP_ENCODING);
+
+            // stick this thing in the cache
+            PHStringUtil.log("Prefetch done....caching file");
+
+            long downloadStart = PHRequestTiming.now();
+
+            // the cache only locks the commit itself so prefetches download side by side
+            cache.cacheFile(url, response.getBody(), isCompressed, validators);
+
+            // downloading and writing to the cache overlap so it's all download time
+            if (timing != null)
+                timing.add(PHRequestTiming.Phase.Download, PHRequestTiming.now() - downloadStart);
+
+            // make sure the connection goes back to the pool even if caching bailed early
+            response.close();
 		} catch (Exception e) { // swallow all exceptions
-			PHCrashReport.reportCrash(e, "PHPrefetchTask - doInBackground", PHCrashReport.Urgency.low);
+			if ( ! isCancelled()) // an aborted download fails as expected
+				PHCrashReport.reportCrash(e, "PHPrefetchTask - doInBackground", PHCrashReport.Urgency.low);
+		} finally {
+			activeRequest = null;
 		}
 		
 		return responseCode;
 	}
-	
+
+	/** Aborts the download so the connection is released without reading the rest of the file */
 	@Override
-	protected void onProgressUpdate(Integer... progress) {
-		// Don't actually do anything...
+	protected void onCancelRequested() {
+		PHTransportRequest request = activeRequest;
+
+		if (request != null)
+			request.abort();
 	}
 	
 	@Override
@@ -6,6 +6,7 @@ import android.content.SharedPreferences;
 import android.os.SystemClock;
 import android.preference.PreferenceManager;
 
+import v2.com.playhaven.requests.base.PHDeferredRequests;
 import v2.com.playhaven.utils.PHStringUtil;
 
 
@@ -147,6 +148,9 @@ public class PHSession {
         
         mSession = getInstance(activity);
         
+        // we might not get to send deferred requests (purchase reports) once in the background
+        PHDeferredRequests.getSharedQueue().onHostPaused();
+        
         if (!mSession.mSessionPaused) {
             mSession.pauseSession();
             
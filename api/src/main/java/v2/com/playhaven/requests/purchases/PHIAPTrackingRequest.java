@@ -10,6 +10,8 @@ import org.json.JSONObject;
 import android.content.Context;
 
 import v2.com.playhaven.requests.base.PHAPIRequest;
+import v2.com.playhaven.requests.base.PHDeferredRequests;
+import v2.com.playhaven.requests.base.PHRequestScheduler;
 import v2.com.playhaven.model.PHError;
 import v2.com.playhaven.model.PHPurchase;
 
@@ -124,6 +126,32 @@ public class PHIAPTrackingRequest extends PHAPIRequest {
 		return super.createAPIURL(context, "/v3/publisher/iap/");
 	}
 
+	/** Purchase tracking isn't user facing so it waits for content, opens and badges */
+	@Override
+	public PHRequestScheduler.Priority getPriority() {
+		return PHRequestScheduler.Priority.IAPTracking;
+	}
+
+	@Override
+	public String getMetricsName() {
+		return "iap";
+	}
+
+	/**
+	 * Nobody is waiting on the purchase report so it can wait for the radio to be awake.
+	 * It's sent at the latest when the host pauses (see {@link PHDeferredRequests#onHostPaused()}).
+	 */
+	@Override
+	public boolean isDeferrable() {
+		return true;
+	}
+
+	/** A repeated purchase report could be counted twice so we never retry it */
+	@Override
+	public boolean isIdempotent() {
+		return false;
+	}
+
 	@Override
 	public Hashtable<String, String> getAdditionalParams(Context context) {
         if (purchase == null) return new Hashtable<String, String>();
@@ -0,0 +1,115 @@
+package v2.com.playhaven.utils;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import v2.com.playhaven.configuration.PHConfiguration.ConnectionType;
+import v2.com.playhaven.listeners.PHConnectivityListener;
+import v2.com.playhaven.requests.crashreport.PHCrashReport;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps track of the network state so that nobody else has to ask the {@link ConnectivityManager}
+ * (an IPC call) for it. The state is refreshed from the connectivity broadcast, which is sticky so
+ * we get the current state as soon as we start listening (see {@link #start(Context)}).
+ *
+ * Request signing reads the connection type from here, and the {@link v2.com.playhaven.requests.base.PHRequestScheduler}
+ * holds back queued requests while we are offline.
+ *
+ * This class is a singleton, see {@link #getSharedMonitor()}.
+ */
+public class PHConnectivityMonitor {
+
+    private static PHConnectivityMonitor sharedMonitor;
+
+    private final CopyOnWriteArrayList<PHConnectivityListener> listeners = new CopyOnWriteArrayList<PHConnectivityListener>();
+
+    private volatile ConnectionType connectionType;
+
+    /**
+     * Only the broadcast tells us we're offline for certain (without a ConnectivityManager, such as in tests,
+     * the connection type is NO_NETWORK as well) so until we hear otherwise we assume we're connected.
+     */
+    private volatile boolean connected = true;
+
+    private BroadcastReceiver receiver;
+
+    public static synchronized PHConnectivityMonitor getSharedMonitor() {
+        if (sharedMonitor == null)
+            sharedMonitor = new PHConnectivityMonitor();
+
+        return sharedMonitor;
+    }
+
+    private PHConnectivityMonitor() {
+        // use getSharedMonitor()
+    }
+
+    /** Starts listening for connectivity changes. Safe to call more than once. */
+    public synchronized void start(Context context) {
+        if (receiver != null) return;
+
+        final Context appContext = context.getApplicationContext();
+
+        connectionType = PHConnectionUtils.getConnectionType(appContext);
+
+        receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                try {
+                    update(PHConnectionUtils.getConnectionType(appContext),
+                           ! intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false));
+
+                } catch (Exception e) { // swallow all exceptions
+                    PHCrashReport.reportCrash(e, "PHConnectivityMonitor - onReceive", PHCrashReport.Urgency.low);
+                }
+            }
+        };
+
+        appContext.registerReceiver(receiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    private void update(ConnectionType type, boolean isConnected) {
+        boolean changed = (type != connectionType || isConnected != connected);
+
+        connectionType = type;
+        connected      = isConnected;
+
+        if ( ! changed) return;
+
+        PHLog.d("Connectivity changed: " + type + (isConnected ? "" : " (offline)"));
+
+        for (PHConnectivityListener listener : listeners)
+            listener.onConnectivityChanged(type, isConnected);
+    }
+
+    /////////////////////////////////////////////////
+    /////////////// Accessors ///////////////////////
+
+    /**
+     * Gets the current connection type, starting the monitor first if needed.
+     * @param context a valid context
+     */
+    public ConnectionType getConnectionType(Context context) {
+        if (connectionType == null)
+            start(context);
+
+        return connectionType;
+    }
+
+    /** Whether or not we're online as far as we know (true until told otherwise) */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public void addListener(PHConnectivityListener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(PHConnectivityListener listener) {
+        listeners.remove(listener);
+    }
+}
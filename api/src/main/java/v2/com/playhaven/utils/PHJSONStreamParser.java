@@ -0,0 +1,144 @@
+package v2.com.playhaven.utils;
+
+import android.os.Build;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+/**
+ * Builds a {@link JSONObject} straight from a response stream without first
+ * copying the whole body into a byte array and then into a String.
+ *
+ * On Honeycomb and above we use the {@link JsonReader} pull parser so the
+ * only thing we ever hold in memory is the resulting tree. Older devices don't have
+ * it so we fall back to decoding the characters once and handing them to {@link JSONObject}.
+ */
+public class PHJSONStreamParser {
+
+    private static final String ENCODING = "UTF-8";
+
+    /** Size of the character buffer when decoding the stream */
+    private static final int BUFFER_SIZE = 4096;
+
+    /**
+     * Parses the stream (which must contain a single JSON object) into a {@link JSONObject}.
+     * @param in the response stream. We don't close it.
+     * @throws IOException if the stream itself fails
+     * @throws JSONException if the stream doesn't contain a valid JSON object
+     */
+    public static JSONObject parse(InputStream in) throws IOException, JSONException {
+        Reader reader = new BufferedReader(new InputStreamReader(in, ENCODING), BUFFER_SIZE);
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB)
+            return new JSONObject(readFully(reader));
+
+        // mimic JSONObject which refuses an empty document
+        reader.mark(1);
+        if (reader.read() == -1)
+            throw new JSONException("End of input");
+
+        reader.reset();
+
+        try {
+            JsonReader json = new JsonReader(reader);
+
+            if (json.peek() != JsonToken.BEGIN_OBJECT)
+                throw new JSONException("Response is not a JSON object");
+
+            return readObject(json);
+
+        } catch (MalformedJsonException e) {
+            throw new JSONException(e.getMessage());
+
+        } catch (IllegalStateException e) {
+            // JsonReader throws this when the document doesn't have the structure we expect
+            throw new JSONException(e.getMessage());
+        }
+    }
+
+    private static String readFully(Reader reader) throws IOException {
+        StringBuilder builder = new StringBuilder(BUFFER_SIZE);
+
+        char[] buffer = new char[BUFFER_SIZE];
+        int read;
+
+        while ((read = reader.read(buffer)) != -1)
+            builder.append(buffer, 0, read);
+
+        return builder.toString();
+    }
+
+    private static JSONObject readObject(JsonReader reader) throws IOException, JSONException {
+        JSONObject object = new JSONObject();
+
+        reader.beginObject();
+
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            object.put(name, readValue(reader));
+        }
+
+        reader.endObject();
+
+        return object;
+    }
+
+    private static JSONArray readArray(JsonReader reader) throws IOException, JSONException {
+        JSONArray array = new JSONArray();
+
+        reader.beginArray();
+
+        while (reader.hasNext())
+            array.put(readValue(reader));
+
+        reader.endArray();
+
+        return array;
+    }
+
+    private static Object readValue(JsonReader reader) throws IOException, JSONException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                return readObject(reader);
+            case BEGIN_ARRAY:
+                return readArray(reader);
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NUMBER:
+                return readNumber(reader.nextString());
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            default:
+                return reader.nextString();
+        }
+    }
+
+    /** Converts numbers the same way {@link org.json.JSONTokener} would: Integer, Long or Double. */
+    private static Object readNumber(String number) {
+        if (number.indexOf('.') == -1 && number.indexOf('e') == -1 && number.indexOf('E') == -1) {
+            try {
+                long value = Long.parseLong(number);
+
+                if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE)
+                    return (int) value;
+
+                return value;
+
+            } catch (NumberFormatException e) {
+                // too large for a long, fall through to a double
+            }
+        }
+
+        return Double.valueOf(number);
+    }
+}
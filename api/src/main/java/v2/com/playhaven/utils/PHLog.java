@@ -0,0 +1,158 @@
+package v2.com.playhaven.utils;
+
+import android.util.Log;
+import v2.com.playhaven.configuration.Version;
+
+import java.util.List;
+
+/**
+ * Leveled logger for the SDK. Everything is logged under the constant {@link #TAG}.
+ *
+ * Logging is split in two: what goes to logcat (see {@link #setLevel(Level)}, Debug by default
+ * like the SDK always logged; Info or Warn quiets it down for release builds)
+ * and what is kept in an in-memory ring buffer of recent events (see {@link #setBufferLevel(Level)},
+ * Debug by default) which can be dumped when diagnosing a problem (see {@link #dump()}).
+ *
+ * Messages at a level neither of them wants are dropped right away. Call sites which
+ * build expensive messages should check {@link #isLoggable(Level)} first so that
+ * disabled levels cost nothing:
+ *
+ * <pre>
+ *     if (PHLog.isLoggable(PHLog.Level.Verbose))
+ *         PHLog.v("Unparsed JSON: " + response);
+ * </pre>
+ */
+public class PHLog {
+
+    public static final String TAG = "PlayHaven-" + Version.PROJECT_VERSION;
+
+    /** How many recent events we keep around for {@link #dump()} */
+    public static final int BUFFER_CAPACITY = 256;
+
+    public enum Level {
+        Verbose (Log.VERBOSE),
+        Debug   (Log.DEBUG),
+        Info    (Log.INFO),
+        Warn    (Log.WARN),
+        Error   (Log.ERROR),
+        None    (Integer.MAX_VALUE);
+
+        private final int priority;
+
+        private Level(int priority) {
+            this.priority = priority;
+        }
+
+        /** The android log priority (see {@link Log}) */
+        public int getPriority() {
+            return priority;
+        }
+    }
+
+    private static final PHLogBuffer buffer = new PHLogBuffer(BUFFER_CAPACITY);
+
+    private static volatile Level logcatLevel = Level.Debug;
+
+    private static volatile Level bufferLevel = Level.Debug;
+
+    /** The lowest of the two levels, i.e. the cheap check every log call starts with */
+    private static volatile int minPriority = Level.Debug.getPriority();
+
+    /////////////////////////////////////////////////
+    /////////////// Configuration ///////////////////
+
+    /** Sets the lowest level which goes to logcat (Level.None to keep logcat quiet) */
+    public static void setLevel(Level level) {
+        logcatLevel = level;
+        updateMinPriority();
+    }
+
+    public static Level getLevel() {
+        return logcatLevel;
+    }
+
+    /** Sets the lowest level which is kept in the ring buffer (Level.None to turn it off) */
+    public static void setBufferLevel(Level level) {
+        bufferLevel = level;
+        updateMinPriority();
+    }
+
+    public static Level getBufferLevel() {
+        return bufferLevel;
+    }
+
+    private static synchronized void updateMinPriority() {
+        minPriority = Math.min(logcatLevel.getPriority(), bufferLevel.getPriority());
+    }
+
+    /** Returns true if a message at the given level would go anywhere */
+    public static boolean isLoggable(Level level) {
+        return level.getPriority() >= minPriority && level != Level.None;
+    }
+
+    /////////////////////////////////////////////////
+    /////////////// Logging /////////////////////////
+
+    public static void v(String message) {
+        log(Level.Verbose, message, null);
+    }
+
+    public static void d(String message) {
+        log(Level.Debug, message, null);
+    }
+
+    public static void i(String message) {
+        log(Level.Info, message, null);
+    }
+
+    public static void w(String message) {
+        log(Level.Warn, message, null);
+    }
+
+    public static void e(String message) {
+        log(Level.Error, message, null);
+    }
+
+    public static void e(String message, Throwable error) {
+        log(Level.Error, message, error);
+    }
+
+    public static void log(Level level, String message, Throwable error) {
+        if ( ! isLoggable(level)) return;
+
+        int priority = level.getPriority();
+
+        if (priority >= bufferLevel.getPriority())
+            buffer.add(level, (error != null ? message + ": " + error : message));
+
+        if (priority >= logcatLevel.getPriority()) {
+            if (error != null)
+                message = message + '\n' + Log.getStackTraceString(error);
+
+            Log.println(priority, TAG, message);
+        }
+    }
+
+    /////////////////////////////////////////////////
+    /////////////// Diagnostics /////////////////////
+
+    /** The recent events in the ring buffer, oldest first */
+    public static List<PHLogBuffer.Entry> getRecentEvents() {
+        return buffer.getEntries();
+    }
+
+    /** The recent events in the ring buffer as text, oldest first and one per line */
+    public static String dump() {
+        return buffer.dump();
+    }
+
+    /** Writes the ring buffer to logcat regardless of the level (e.g. from a bug report hook) */
+    public static void dumpToLogcat() {
+        for (PHLogBuffer.Entry entry : buffer.getEntries())
+            Log.println(Log.INFO, TAG, entry.toString());
+    }
+
+    public static void clearRecentEvents() {
+        buffer.clear();
+    }
+}
@@ -0,0 +1,124 @@
+package v2.com.playhaven.utils;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free ring buffer of the most recent SDK log events (see {@link PHLog}).
+ * Writers claim a slot with a single atomic increment and simply overwrite whatever
+ * was there, so logging never blocks and the buffer never grows. Readers take a
+ * best effort snapshot: entries overwritten while reading are skipped.
+ */
+public class PHLogBuffer {
+
+    /** A single logged event */
+    public static class Entry {
+        private final long sequence;
+
+        private final long time;
+
+        private final PHLog.Level level;
+
+        private final String thread;
+
+        private final String message;
+
+        private Entry(long sequence, PHLog.Level level, String message) {
+            this.sequence = sequence;
+            this.time     = System.currentTimeMillis();
+            this.level    = level;
+            this.thread   = Thread.currentThread().getName();
+            this.message  = message;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public PHLog.Level getLevel() {
+            return level;
+        }
+
+        public String getThread() {
+            return thread;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        @Override
+        public String toString() {
+            SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
+
+            return format.format(new Date(time)) + " " + level.name().charAt(0) + " [" + thread + "] " + message;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> entries;
+
+    /** Sequence number of the next entry, also the total number of entries ever added */
+    private final AtomicLong next = new AtomicLong();
+
+    private final int mask;
+
+    /**
+     * @param capacity how many entries to keep, rounded up to a power of two
+     */
+    public PHLogBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 1) - 1) << 1;
+
+        if (size <= 0) size = 1;
+
+        this.entries = new AtomicReferenceArray<Entry>(size);
+        this.mask    = size - 1;
+    }
+
+    public int getCapacity() {
+        return entries.length();
+    }
+
+    public void add(PHLog.Level level, String message) {
+        long sequence = next.getAndIncrement();
+
+        entries.set((int) (sequence & mask), new Entry(sequence, level, message));
+    }
+
+    /** Returns the buffered entries, oldest first */
+    public List<Entry> getEntries() {
+        long end   = next.get();
+        long start = Math.max(0, end - entries.length());
+
+        ArrayList<Entry> snapshot = new ArrayList<Entry>((int) (end - start));
+
+        for (long sequence = start; sequence < end; sequence++) {
+            Entry entry = entries.get((int) (sequence & mask));
+
+            // either not written yet or already overwritten by a newer one
+            if (entry != null && entry.sequence == sequence)
+                snapshot.add(entry);
+        }
+
+        return snapshot;
+    }
+
+    /** Returns the buffered entries, oldest first, one per line */
+    public String dump() {
+        StringBuilder out = new StringBuilder(entries.length() * 64);
+
+        for (Entry entry : getEntries())
+            out.append(entry).append('\n');
+
+        return out.toString();
+    }
+
+    public void clear() {
+        for (int i = 0; i < entries.length(); i++)
+            entries.set(i, null);
+    }
+}
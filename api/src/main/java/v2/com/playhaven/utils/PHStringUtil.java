@@ -2,20 +2,76 @@ package v2.com.playhaven.utils;
 
 import android.text.TextUtils;
 import android.util.Base64;
-import android.util.Log;
-import v2.com.playhaven.configuration.PHConfiguration;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Formatter;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class PHStringUtil extends Object {
+	
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	/** MessageDigest isn't thread safe and expensive to look up, so each thread keeps its own */
+	private static final ThreadLocal<MessageDigest> SHA1_DIGEST = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				return null;
+			}
+		}
+	};
+	
+	/** How many nonces we keep ready (a session rarely makes more requests than this) */
+	private static final int NONCE_POOL_SIZE = 16;
+	
+	/** We start refilling once the pool drops below this */
+	private static final int NONCE_POOL_LOW_WATER = 4;
+	
+	private static final ConcurrentLinkedQueue<String> noncePool = new ConcurrentLinkedQueue<String>();
+	
+	private static final AtomicBoolean refillingNonces = new AtomicBoolean();
+	
+	/** Refills the nonce pool */
+	private static final ExecutorService nonceRefiller = PHThreadUtils.newSerialExecutor("PlayHaven-Nonces");
+	
+	/**
+	 * What {@link #weakUrlEncode(String)} replaces each ASCII character with (null to keep it).
+	 * This is what the old replace-in-a-loop implementation produced, including its
+	 * quirks ('#' is sent as %21, '!' as %27 and '\'' as %28) which the server expects.
+	 */
+	private static final String[] WEAK_URL_ESCAPES = new String[128];
+	
+	static {
+		WEAK_URL_ESCAPES[';']  = "%3B";
+		WEAK_URL_ESCAPES['?']  = "%3F";
+		WEAK_URL_ESCAPES[' ']  = "+";
+		WEAK_URL_ESCAPES['&']  = "%26";
+		WEAK_URL_ESCAPES['=']  = "%3D";
+		WEAK_URL_ESCAPES['$']  = "%24";
+		WEAK_URL_ESCAPES[',']  = "%2C";
+		WEAK_URL_ESCAPES['[']  = "%5B";
+		WEAK_URL_ESCAPES[']']  = "%5D";
+		WEAK_URL_ESCAPES['#']  = "%21";
+		WEAK_URL_ESCAPES['!']  = "%27";
+		WEAK_URL_ESCAPES['\''] = "%28";
+		WEAK_URL_ESCAPES['(']  = "%28";
+		WEAK_URL_ESCAPES[')']  = "%29";
+		WEAK_URL_ESCAPES['*']  = "%2A";
+	}
+	
 	public static String decodeURL(String url) {
 		throw new UnsupportedOperationException("This method is not yet implemented");
 	}
@@ -59,13 +115,9 @@ public class PHStringUtil extends Object {
 		return queryComps;
 	}
 	
-	/** Simple logger */
+	/** Simple logger, logs at the debug level (see {@link PHLog}) */
 	public static void log(String message) {
-        PHConfiguration config = new PHConfiguration();
-
-        String tag = String.format("PlayHaven-%s", config.getSDKVersion());
-
-		Log.d(tag, message);
+		PHLog.d(message);
 	}
 	
 	/** 
@@ -76,7 +128,8 @@ public class PHStringUtil extends Object {
 	public static String createQuery(HashMap<String, String> dict) {
 		if (dict == null) return null;
 		
-		StringBuilder query = new StringBuilder();
+		// a rough guess which saves us most of the resizing
+		StringBuilder query = new StringBuilder(dict.size() * 24);
 		
 		for (Map.Entry<String, String>  entry : dict.entrySet()) {
 			
@@ -86,16 +139,14 @@ public class PHStringUtil extends Object {
 			if (key   == null ||
 				value == null) continue; 
 				
-			key   = PHStringUtil.urlEncode(key);
-			value = PHStringUtil.weakUrlEncode(value); // weak encode url for server side compatibility
-			
 			// only append '&' if not first key/value pair
-			query.append(String.format(
-						query.length() == 0 ? "%s=%s" 
-											: "&%s=%s", 
-						key, 
-						value)
-						);
+			if (query.length() != 0)
+				query.append('&');
+			
+			query.append(PHStringUtil.urlEncode(key));
+			query.append('=');
+			
+			appendWeakUrlEncoded(query, value); // weak encode url for server side compatibility
 			
 		}
 		
@@ -123,42 +174,27 @@ public class PHStringUtil extends Object {
 	public static String weakUrlEncode(String url) {
 		if (url == null) return null;
 		
-		// make sure you don't have a duplicate character in both lists or it will break.
-		String[] reserved    = {
-							 ";",  "?",  " ",
-                             "&",  "=",  "$", 
-                             ",",  "[",  "]",
-                             "#",  "!",  "'", 
-                             "(",  ")",  "*"
-                             };
-
-		String[] escaped     = {
-							 "%3B", "%3F", "+" ,  
-							 "%26", "%3D", "%24" ,
-                             "%2C", "%5B", "%5D", 
-                             "%21", "%27", "%28", 
-                             "%28", "%29", "%2A"
-                             };
-
-
-		StringBuilder encUrl = new StringBuilder(url);
+		StringBuilder encUrl = new StringBuilder(url.length() + 16);
+		
+		appendWeakUrlEncoded(encUrl, url);
+		
+		return encUrl.toString();
+	}
+	
+	/** Appends the weakly encoded value in a single pass (see {@link #WEAK_URL_ESCAPES}) */
+	private static void appendWeakUrlEncoded(StringBuilder out, String value) {
+		int length = value.length();
 		
-		//cycle through and keep replacing (bit inefficient, but sue me!)
-		for(int i = 0; i < escaped.length; i++) {
-			String res = reserved[i];
-			String esc = escaped [i];
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
 			
-			// replace all occurrences
-			int index = encUrl.indexOf(res);
-			while(index != -1) {
-				encUrl.replace(index, 
-							   index + res.length(), 
-							   esc);
-				
-				index = encUrl.indexOf(res);
-			}
+			String escape = (c < WEAK_URL_ESCAPES.length ? WEAK_URL_ESCAPES[c] : null);
+			
+			if (escape != null)
+				out.append(escape);
+			else
+				out.append(c);
 		}
-		return encUrl.toString();
 	}
 	
 	public static String urlDecode(String in) {
@@ -166,17 +202,14 @@ public class PHStringUtil extends Object {
 	}
 	
 	private static String convertToHex(byte[] in) {
-		StringBuilder builder = new StringBuilder(in.length*2);
+		char[] hex = new char[in.length * 2];
 		
-		Formatter formatter = new Formatter(builder);
-		for (byte inByte : in)
-			formatter.format("%02x", inByte);
-
-        String hex = formatter.toString();
-
-		formatter.close();
+		for (int i = 0; i < in.length; i++) {
+			hex[i * 2]     = HEX_DIGITS[(in[i] >> 4) & 0x0F];
+			hex[i * 2 + 1] = HEX_DIGITS[in[i] & 0x0F];
+		}
 		
-		return hex;
+		return new String(hex);
 	}
 	
 	/** First encrypts with SHA1 and then spits the result out as a hex string*/
@@ -184,6 +217,22 @@ public class PHStringUtil extends Object {
 		return convertToHex(dataDigest(input));
 	}
 	
+	/**
+	 * Same as {@link #hexDigest(String)} of the parts joined by ':' (as in String.format("%s:%s:...")),
+	 * which is how all of our request and reward signatures are built.
+	 */
+	public static String hexSignature(Object... parts) throws NoSuchAlgorithmException, UnsupportedEncodingException {
+		StringBuilder joined = new StringBuilder(128);
+		
+		for (int i = 0; i < parts.length; i++) {
+			if (i > 0) joined.append(':');
+			
+			joined.append(parts[i]);
+		}
+		
+		return hexDigest(joined.toString());
+	}
+	
 	/** First encrypt with SHA1 then convert to Base64*/
 	public static String base64Digest(String input) throws UnsupportedEncodingException, NoSuchAlgorithmException {
 		
@@ -203,8 +252,12 @@ public class PHStringUtil extends Object {
 	private static byte[] dataDigest(String in) throws NoSuchAlgorithmException, UnsupportedEncodingException{
 		if (in == null) return null;
 	
-		MessageDigest md = MessageDigest.getInstance("SHA-1");
-		return 		  md.digest(in.getBytes("UTF8"));
+		MessageDigest md = SHA1_DIGEST.get();
+		
+		// only if SHA-1 isn't available at all, in which case this throws
+		if (md == null) md = MessageDigest.getInstance("SHA-1");
+		
+		return 		  md.digest(in.getBytes(UTF8));
 	}
 	
 	/** Generates unique but random UUID*/
@@ -212,6 +265,48 @@ public class PHStringUtil extends Object {
 		return UUID_GENERATOR.generateUUID();
 	}
 	
+	/**
+	 * Generates a request nonce: the (trimmed) base64 SHA1 digest of a random UUID,
+	 * exactly like base64Digest(generateUUID()). Drawing a UUID means going to SecureRandom
+	 * so we hand out nonces from a pool which is topped up on a background thread.
+	 * If a custom {@link #UUID_GENERATOR} has been set (unit testing) we always use it directly.
+	 */
+	public static String generateNonce() throws UnsupportedEncodingException, NoSuchAlgorithmException {
+		if ( ! (UUID_GENERATOR instanceof DefaultUUIDGenerator))
+			return base64Digest(generateUUID());
+		
+		String nonce = noncePool.poll();
+		
+		if (noncePool.size() < NONCE_POOL_LOW_WATER)
+			refillNoncePool();
+		
+		// the pool ran dry so we pay for it here
+		if (nonce == null)
+			nonce = base64Digest(generateUUID());
+		
+		return nonce;
+	}
+	
+	/** Tops up the nonce pool in the background (unless that's already happening) */
+	private static void refillNoncePool() {
+		if ( ! refillingNonces.compareAndSet(false, true)) return;
+		
+		nonceRefiller.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (noncePool.size() < NONCE_POOL_SIZE)
+						noncePool.add(base64Digest(new DefaultUUIDGenerator().generateUUID()));
+					
+				} catch (Exception e) {
+					// generateNonce() falls back to generating them itself
+				} finally {
+					refillingNonces.set(false);
+				}
+			}
+		});
+	}
+	
 	/** Encodes unicode characters as HTML entities */
 	public static String encodeHtml(String to_encode) {
 		return TextUtils.htmlEncode(to_encode);
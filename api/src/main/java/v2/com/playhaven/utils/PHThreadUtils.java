@@ -0,0 +1,45 @@
+package v2.com.playhaven.utils;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background threads for the work we keep off the main thread (the cache index, the preferences,
+ * the nonce pool, ...) without tying up the {@link v2.com.playhaven.requests.base.PHRequestScheduler}.
+ */
+public class PHThreadUtils {
+
+    /** How long (seconds) an idle background thread sticks around */
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * Creates an executor which runs its tasks one at a time, in order, on a single low priority
+     * thread. The thread is only started once there is work and goes away again when idle.
+     * @param name The name of the thread (shows up in traces)
+     */
+    public static ExecutorService newSerialExecutor(String name) {
+        return new ThreadPoolExecutor(0, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                                      new LinkedBlockingQueue<Runnable>(),
+                                      new BackgroundThreadFactory(name));
+    }
+
+    private static class BackgroundThreadFactory implements ThreadFactory {
+
+        private final String name;
+
+        public BackgroundThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
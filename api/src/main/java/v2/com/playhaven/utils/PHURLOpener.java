@@ -9,6 +9,7 @@ import v2.com.playhaven.configuration.PHConfiguration;
 import v2.com.playhaven.model.PHError;
 import v2.com.playhaven.listeners.PHHttpRequestListener;
 import v2.com.playhaven.requests.base.PHAsyncRequest;
+import v2.com.playhaven.requests.base.PHRequestScheduler;
 import org.json.JSONObject;
 
 import android.app.ProgressDialog;
@@ -178,6 +179,7 @@ public class PHURLOpener extends ProgressDialog  implements PHHttpRequestListene
 			conn                = new PHAsyncRequest(this);
 			conn.setMaxRedirects(MAXIMUM_REDIRECTS);
 			conn.request_type   = PHAsyncRequest.RequestType.Get;
+			conn.setPriority    ( PHRequestScheduler.Priority.ContentDisplay ); // the user just tapped something
 			conn.execute        ( Uri.parse(targetURL) );
 
 
@@ -328,7 +330,7 @@ public class PHURLOpener extends ProgressDialog  implements PHHttpRequestListene
      */
 	@Override
 	public void onHttpRequestFailed(PHError e) {
-		PHStringUtil.log("PHURLOpener failed with error: " + e);
+		PHLog.w("PHURLOpener failed with error: " + e);
 		fail();
 	}
 
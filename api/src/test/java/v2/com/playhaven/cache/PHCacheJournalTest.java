@@ -0,0 +1,216 @@
+package v2.com.playhaven.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import v2.com.playhaven.utils.PHLog;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays {@link PHCacheJournal}s. What a replay gives back decides which cached files
+ * {@link PHCache} keeps, everything else gets deleted when the index loads.
+ * In the cache package since the journal isn't part of the API.
+ */
+public class PHCacheJournalTest {
+
+    private static final String A = "aa/aa/aaaa";
+    private static final String B = "bb/bb/bbbb";
+    private static final String C = "cc/cc/cccc";
+
+    private File directory;
+
+    private PHCacheJournal journal;
+
+    private final LinkedHashMap<String, PHCacheEntry> index = new LinkedHashMap<String, PHCacheEntry>(16, 0.75f, true);
+
+    private final HashSet<String> pins = new HashSet<String>();
+
+    @Before
+    public void setUp() throws IOException {
+        // android.util.Log is a stub on the JVM
+        PHLog.setLevel(PHLog.Level.None);
+
+        directory = File.createTempFile("journal", "test");
+        directory.delete();
+        directory.mkdirs();
+
+        journal = new PHCacheJournal(directory);
+    }
+
+    @After
+    public void tearDown() {
+        journal.close();
+
+        for (File file : directory.listFiles())
+            file.delete();
+
+        directory.delete();
+
+        PHLog.setLevel(PHLog.Level.Debug);
+    }
+
+    @Test
+    public void replaysEveryKindOfRecord() {
+        startJournal();
+
+        journal.writeClean(entry(A, 10, new PHCacheValidators("\"v1\"", "Tue, 15 Nov 1994 12:45:26 GMT", 1234)));
+        journal.writeClean(entry(B, 20, null));
+        journal.writeClean(entry(C, 30, null));
+
+        journal.writeRead(A);
+        journal.writeRemove(B);
+
+        journal.writePins(Arrays.asList(B));
+        journal.writePins(Arrays.asList(A, C));
+
+        journal.close();
+
+        readFresh();
+
+        // A was read after C was written
+        assertEquals(Arrays.asList(C, A), new ArrayList<String>(index.keySet()));
+
+        PHCacheEntry a = index.get(A);
+
+        assertEquals(10, a.size);
+        assertEquals("http://example.com/" + A, a.url);
+        assertEquals(new File(directory, A), a.file);
+        assertEquals("\"v1\"", a.validators.getETag());
+        assertEquals("Tue, 15 Nov 1994 12:45:26 GMT", a.validators.getLastModified());
+        assertEquals(1234, a.validators.getExpires());
+
+        // only the last pins record counts
+        assertEquals(new HashSet<String>(Arrays.asList(A, C)), pins);
+    }
+
+    @Test
+    public void skipsALineCutShortByACrash() throws IOException {
+        write("playhaven.cache.journal\n2\n\n" +
+              "CLEAN\t" + A + "\t10\t1000\thttp://example.com/a\t\t\t0\n" +
+              "CLEAN\t" + B + "\t20\t2000\thttp://example.com/b\t\t\t0\n" +
+              "REMOVE\t" + A + "\n" +
+              "CLEAN\t" + C + "\t3");
+
+        readFresh();
+
+        assertEquals(Arrays.asList(B), new ArrayList<String>(index.keySet()));
+    }
+
+    @Test
+    public void skipsARecordWithGarbledNumbers() throws IOException {
+        write("playhaven.cache.journal\n2\n\n" +
+              "CLEAN\t" + A + "\t1x\t1000\thttp://example.com/a\t\t\t0\n" +
+              "CLEAN\t" + B + "\t20\t2000\thttp://example.com/b\t\t\t0\n");
+
+        readFresh();
+
+        assertEquals(Arrays.asList(B), new ArrayList<String>(index.keySet()));
+    }
+
+    @Test
+    public void readsAVersion1Journal() throws IOException {
+        // CLEAN records from before the validators
+        write("playhaven.cache.journal\n1\n\n" +
+              "CLEAN\t" + A + "\t10\t1000\thttp://example.com/a\n" +
+              "CLEAN\t" + B + "\t20\t2000\thttp://example.com/b\n" +
+              "READ\t" + A + "\n");
+
+        readFresh();
+
+        assertEquals(Arrays.asList(B, A), new ArrayList<String>(index.keySet()));
+
+        PHCacheEntry a = index.get(A);
+
+        assertEquals(10, a.size);
+        assertEquals(1000, a.written);
+        assertEquals("http://example.com/a", a.url);
+
+        // nothing to revalidate with
+        assertNull(a.validators.getETag());
+        assertNull(a.validators.getLastModified());
+        assertEquals(0, a.validators.getExpires());
+    }
+
+    @Test
+    public void discardsAJournalWeDontRecognize() throws IOException {
+        write("playhaven.cache.journal\n3\n\n" +
+              "CLEAN\t" + A + "\t10\t1000\thttp://example.com/a\t\t\t0\n");
+
+        readFresh();
+
+        assertTrue(index.isEmpty());
+    }
+
+    @Test
+    public void aMissingJournalIsAnEmptyCache() {
+        readFresh();
+
+        assertTrue(index.isEmpty());
+        assertTrue(pins.isEmpty());
+    }
+
+    @Test
+    public void rebuildingKeepsTheIndexAndThePins() {
+        startJournal();
+
+        journal.writeClean(entry(A, 10, null));
+        journal.writeClean(entry(B, 20, null));
+        journal.writeClean(entry(C, 30, null));
+        journal.writeRead(A);
+        journal.writeRemove(B);
+        journal.writePins(Arrays.asList(C));
+
+        readFresh();
+
+        journal.rebuild(new ArrayList<PHCacheEntry>(index.values()), new ArrayList<String>(pins));
+
+        readFresh();
+
+        assertEquals(Arrays.asList(C, A), new ArrayList<String>(index.keySet()));
+        assertEquals(new HashSet<String>(Arrays.asList(C)), pins);
+        assertTrue( ! new File(directory, "journal.tmp").exists());
+    }
+
+    /** Writes the header, like {@link PHCache} which starts every journal with a rebuild */
+    private void startJournal() {
+        journal.rebuild(new ArrayList<PHCacheEntry>(), new ArrayList<String>());
+    }
+
+    /** Reads the journal from disk (with a new instance, like a restarted process) */
+    private void readFresh() {
+        journal.close();
+
+        index.clear();
+        pins.clear();
+
+        journal = new PHCacheJournal(directory);
+        journal.read(index, pins);
+    }
+
+    private PHCacheEntry entry(String key, long size, PHCacheValidators validators) {
+        return new PHCacheEntry(key, new File(directory, key), "http://example.com/" + key, size, System.currentTimeMillis(), validators);
+    }
+
+    private void write(String contents) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(new File(directory, PHCacheJournal.JOURNAL_FILE)), "UTF-8");
+
+        try {
+            writer.write(contents);
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package v2.com.playhaven.test.benchmark;
+
+import v2.com.playhaven.utils.PHStringUtil;
+
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Measures building the query string of a signed API request with {@link PHStringUtil#createQuery(HashMap)},
+ * comparing it with the implementation it replaced (copied below). A plain main() like
+ * {@link PHSigningBenchmark}, run it the same way:
+ *
+ *     java -cp <classes>:<test-classes> v2.com.playhaven.test.benchmark.PHQueryBenchmark
+ *
+ * The parameters are the ones a content request sends: the device snapshot (see PHDeviceInfo),
+ * the signature parameters and the placement. We measure both the whole map and just the part
+ * which changes from request to request (the device part is encoded once per snapshot).
+ */
+public class PHQueryBenchmark {
+
+    private static final int WARMUP_RUNS   = 50000;
+    private static final int MEASURED_RUNS = 200000;
+
+    private static volatile String sink;
+
+    public static void main(String[] args) {
+        HashMap<String, String> device  = deviceParams();
+        HashMap<String, String> request = requestParams();
+
+        HashMap<String, String> signed = new HashMap<String, String>(device);
+        signed.putAll(request);
+
+        // the benchmark means nothing if the output differs
+        if ( ! originalCreateQuery(signed).equals(PHStringUtil.createQuery(signed)))
+            throw new IllegalStateException("createQuery doesn't match the original");
+
+        report("signed params", signed);
+        report("request part",  request);
+    }
+
+    private static void report(String name, HashMap<String, String> params) {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            sink = originalCreateQuery(params);
+            sink = PHStringUtil.createQuery(params);
+        }
+
+        long baseline = 0;
+        long current  = 0;
+
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            long start = System.nanoTime();
+            sink = originalCreateQuery(params);
+            long middle = System.nanoTime();
+            sink = PHStringUtil.createQuery(params);
+            long end = System.nanoTime();
+
+            baseline += middle - start;
+            current  += end - middle;
+        }
+
+        System.out.println(String.format("%s (%d params):", name, params.size()));
+        System.out.println(String.format("  baseline: %6d ns per query", baseline / MEASURED_RUNS));
+        System.out.println(String.format("  current:  %6d ns per query", current  / MEASURED_RUNS));
+        System.out.println(String.format("  speedup:  %.1fx", (double) baseline / current));
+    }
+
+    /** What PHDeviceInfo collects on a typical phone */
+    private static HashMap<String, String> deviceParams() {
+        HashMap<String, String> params = new HashMap<String, String>();
+
+        params.put("device",       "9774d56d682e549c");
+        params.put("app",          "com.example.game");
+        params.put("app_version",  "2.4.1 (build 318)");
+        params.put("hardware",     "Galaxy Nexus");
+        params.put("os",           "4.1.1 16");
+        params.put("idiom",        "2");
+        params.put("width",        "720");
+        params.put("height",       "1184");
+        params.put("sdk_version",  "1.12.5");
+        params.put("sdk_platform", "android");
+        params.put("orientation",  "0");
+        params.put("dpi",          "320");
+        params.put("languages",    "en");
+
+        return params;
+    }
+
+    /** What a content request adds (see PHAPIRequest#getSignedParams) */
+    private static HashMap<String, String> requestParams() {
+        HashMap<String, String> params = new HashMap<String, String>();
+
+        params.put("token",        "a1b2c3d4e5f6a7b8c9d0");
+        params.put("signature",    "3f786850e387550fdab836ed7e6dc881de23001b");
+        params.put("nonce",        "Rz1Xq0v3h-Kp7_Jm2Ns8Tw5YbA");
+        params.put("connection",   "1");
+        params.put("placement_id", "level complete");
+        params.put("preload",      "0");
+        params.put("stime",        "1843");
+
+        return params;
+    }
+
+    ///////////////////////////////////////////////////////////
+    ///////////// The implementation we replaced //////////////
+
+    private static String originalCreateQuery(HashMap<String, String> dict) {
+        if (dict == null) return null;
+
+        StringBuilder query = new StringBuilder();
+
+        for (Map.Entry<String, String>  entry : dict.entrySet()) {
+
+            String key   = entry.getKey();
+            String value = entry.getValue();
+
+            if (key   == null ||
+                value == null) continue;
+
+            key   = URLEncoder.encode(key);
+            value = originalWeakUrlEncode(value);
+
+            query.append(String.format(
+                        query.length() == 0 ? "%s=%s"
+                                            : "&%s=%s",
+                        key,
+                        value)
+                        );
+
+        }
+
+        return query.toString();
+    }
+
+    private static String originalWeakUrlEncode(String url) {
+        if (url == null) return null;
+
+        String[] reserved    = {
+                             ";",  "?",  " ",
+                             "&",  "=",  "$",
+                             ",",  "[",  "]",
+                             "#",  "!",  "'",
+                             "(",  ")",  "*"
+                             };
+
+        String[] escaped     = {
+                             "%3B", "%3F", "+" ,
+                             "%26", "%3D", "%24" ,
+                             "%2C", "%5B", "%5D",
+                             "%21", "%27", "%28",
+                             "%28", "%29", "%2A"
+                             };
+
+        StringBuilder encUrl = new StringBuilder(url);
+
+        for(int i = 0; i < escaped.length; i++) {
+            String res = reserved[i];
+            String esc = escaped [i];
+
+            int index = encUrl.indexOf(res);
+            while(index != -1) {
+                encUrl.replace(index,
+                               index + res.length(),
+                               esc);
+
+                index = encUrl.indexOf(res);
+            }
+        }
+        return encUrl.toString();
+    }
+}
@@ -0,0 +1,110 @@
+package v2.com.playhaven.test.benchmark;
+
+import v2.com.playhaven.utils.PHStringUtil;
+
+import java.security.MessageDigest;
+import java.util.Formatter;
+import java.util.UUID;
+
+/**
+ * Measures what signing an API request (the nonce plus the signature hash) costs the calling thread,
+ * comparing {@link PHStringUtil} with the implementation it replaced (copied below).
+ * A plain main() since we can't pull JMH into the build; run it on a desktop JVM with the api classes
+ * (and an android.util.Base64 that actually encodes) on the classpath:
+ *
+ *     java -cp <classes>:<test-classes> v2.com.playhaven.test.benchmark.PHSigningBenchmark
+ *
+ * Requests are a few seconds apart in practice, which gives the nonce pool time to top itself up.
+ * We mimic that by signing in small rounds and waiting (untimed) for the refill in between.
+ */
+public class PHSigningBenchmark {
+
+    private static final String TOKEN  = "a1b2c3d4e5f6a7b8c9d0";
+    private static final String DEVICE = "9774d56d682e549c";
+    private static final String SECRET = "0f1e2d3c4b5a69788796a5b4c3d2e1f0";
+
+    /** Requests signed back to back (the nonce pool still runs low and refills every few rounds) */
+    private static final int ROUND = 4;
+
+    private static final int WARMUP_ROUNDS   = 2000;
+    private static final int MEASURED_ROUNDS = 10000;
+
+    private static volatile String sink;
+
+    public static void main(String[] args) throws Exception {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            baselineRound();
+            currentRound();
+        }
+
+        long baseline = 0;
+        long current  = 0;
+
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            baseline += baselineRound();
+            current  += currentRound();
+        }
+
+        long requests = (long) MEASURED_ROUNDS * ROUND;
+
+        System.out.println(String.format("baseline: %6d ns per request", baseline / requests));
+        System.out.println(String.format("current:  %6d ns per request", current  / requests));
+        System.out.println(String.format("speedup:  %.1fx", (double) baseline / current));
+    }
+
+    private static long baselineRound() throws Exception {
+        long start = System.nanoTime();
+
+        for (int i = 0; i < ROUND; i++) {
+            String nonce = baselineBase64Digest(UUID.randomUUID().toString());
+
+            sink = baselineHexDigest(String.format("%s:%s:%s:%s", TOKEN, DEVICE, nonce, SECRET));
+        }
+
+        return System.nanoTime() - start;
+    }
+
+    private static long currentRound() throws Exception {
+        long start = System.nanoTime();
+
+        for (int i = 0; i < ROUND; i++) {
+            String nonce = PHStringUtil.generateNonce();
+
+            sink = PHStringUtil.hexSignature(TOKEN, DEVICE, nonce, SECRET);
+        }
+
+        long elapsed = System.nanoTime() - start;
+
+        // what the time between requests does for the pool
+        Thread.sleep(1);
+
+        return elapsed;
+    }
+
+    ///////////////////////////////////////////////////////////
+    ///////////// The implementation we replaced //////////////
+
+    private static String baselineHexDigest(String input) throws Exception {
+        byte[] digest = MessageDigest.getInstance("SHA-1").digest(input.getBytes("UTF8"));
+
+        StringBuilder builder = new StringBuilder(digest.length * 2);
+
+        Formatter formatter = new Formatter(builder);
+        for (byte inByte : digest)
+            formatter.format("%02x", inByte);
+
+        String hex = formatter.toString();
+
+        formatter.close();
+
+        return hex;
+    }
+
+    private static String baselineBase64Digest(String input) throws Exception {
+        byte[] digest = MessageDigest.getInstance("SHA-1").digest(input.getBytes("UTF8"));
+
+        String b64digest = new String(android.util.Base64.encode(digest, android.util.Base64.URL_SAFE | android.util.Base64.NO_PADDING), "UTF8");
+
+        return b64digest.substring(0, b64digest.length() - 1);
+    }
+}
@@ -0,0 +1,411 @@
+package v2.com.playhaven.test.unit;
+
+import android.content.Context;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import v2.com.playhaven.model.PHError;
+import v2.com.playhaven.requests.base.PHAPIRequest;
+import v2.com.playhaven.requests.base.PHAsyncRequest;
+import v2.com.playhaven.requests.base.PHBatchRequest;
+import v2.com.playhaven.requests.base.PHTransportRequest;
+import v2.com.playhaven.requests.base.PHTransportResponse;
+import v2.com.playhaven.requests.base.PHURLConnectionTransport;
+import v2.com.playhaven.utils.PHLog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.util.Hashtable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Sends a {@link PHBatchRequest} to a stub server on the loopback interface which implements
+ * the batch contract (see the class comment of {@link PHBatchRequest}) and checks that every
+ * request gets its own part of the response.
+ *
+ * Signing and sending need a real device, so we build the payload, POST it with the transport
+ * ourselves and hand the response to the batch the way {@link PHAsyncRequest} would.
+ */
+public class PHBatchRequestTest {
+
+    private static final String API = "http://api.playhaven.com";
+
+    private StubBatchServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        // android.util.Log is a stub on the JVM
+        PHLog.setLevel(PHLog.Level.None);
+
+        server = new StubBatchServer();
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.stop();
+
+        PHLog.setLevel(PHLog.Level.Debug);
+    }
+
+    @Test
+    public void everyRequestGetsItsOwnResponse() throws Exception {
+        RecordingRequest badge = new RecordingRequest("/v3/publisher/badge/", false, "app", "com.example");
+        RecordingRequest iap   = new RecordingRequest("/v3/publisher/iap/", true, "product", "sword");
+        RecordingRequest open  = new RecordingRequest("/v3/publisher/open/", false);
+
+        iap.post.put("quantity", "2");
+
+        PHBatchRequest batch = new PHBatchRequest(badge, iap, open);
+
+        send(batch);
+
+        // what the server was asked for
+        JSONArray received = server.lastRequests;
+
+        assertEquals(3, received.length());
+
+        assertEquals("GET",                  received.getJSONObject(0).getString("method"));
+        assertEquals("/v3/publisher/badge/", received.getJSONObject(0).getString("path"));
+        assertEquals("com.example",          received.getJSONObject(0).getJSONObject("params").getString("app"));
+
+        assertEquals("POST",                 received.getJSONObject(1).getString("method"));
+        assertEquals("sword",                received.getJSONObject(1).getJSONObject("params").getString("product"));
+        assertEquals("2",                    received.getJSONObject(1).getJSONObject("post").getString("quantity"));
+
+        // and what each request got back
+        assertNull(badge.failure);
+        assertEquals("/v3/publisher/badge/", badge.success.getString("path"));
+        assertEquals("com.example",          badge.success.getJSONObject("params").getString("app"));
+
+        assertNull(iap.failure);
+        assertEquals("/v3/publisher/iap/",   iap.success.getString("path"));
+
+        assertNull(open.failure);
+        assertEquals("/v3/publisher/open/",  open.success.getString("path"));
+    }
+
+    @Test
+    public void anErrorOnlyFailsItsOwnRequest() throws Exception {
+        RecordingRequest good = new RecordingRequest("/v3/publisher/badge/", false);
+        RecordingRequest bad  = new RecordingRequest("/v3/publisher/iap/", false, StubBatchServer.FAIL_PARAM, "no such product");
+
+        send(new PHBatchRequest(good, bad));
+
+        assertNull(good.failure);
+        assertNotNull(good.success);
+
+        assertNull(bad.success);
+        assertNotNull(bad.failure);
+        assertEquals("Server sent error message: no such product", bad.failure.getMessage());
+    }
+
+    @Test
+    public void requestsMissingFromTheResponseFail() throws Exception {
+        RecordingRequest first  = new RecordingRequest("/v3/publisher/badge/", false);
+        RecordingRequest second = new RecordingRequest("/v3/publisher/iap/", false);
+
+        server.dropLast = true;
+
+        send(new PHBatchRequest(first, second));
+
+        assertNotNull(first.success);
+
+        assertNull(second.success);
+        assertNotNull(second.failure);
+    }
+
+    @Test
+    public void aFailedBatchFailsEveryRequest() throws Exception {
+        RecordingRequest first  = new RecordingRequest("/v3/publisher/badge/", false);
+        RecordingRequest second = new RecordingRequest("/v3/publisher/iap/", false);
+
+        server.status = 500;
+
+        send(new PHBatchRequest(first, second));
+
+        assertNull(first.success);
+        assertNull(second.success);
+
+        assertEquals("Request failed with code: 500", first.failure.getMessage());
+        assertEquals("Request failed with code: 500", second.failure.getMessage());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void streamingRequestsCantBeBatched() {
+        RecordingRequest streaming = new RecordingRequest("/v3/publisher/content/", false);
+        streaming.streaming = true;
+
+        new PHBatchRequest().add(streaming);
+    }
+
+    @Test
+    public void aBatchHoldsAtMostMaxBatchSizeRequests() {
+        PHBatchRequest batch = new PHBatchRequest();
+
+        for (int i = 0; i < PHBatchRequest.MAX_BATCH_SIZE; i++)
+            batch.add(new RecordingRequest("/v3/publisher/badge/", false));
+
+        try {
+            batch.add(new RecordingRequest("/v3/publisher/badge/", false));
+            fail("The batch should be full");
+
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /** POSTs the batch payload to the stub server and hands the response to the batch */
+    private void send(PHBatchRequest batch) throws Exception {
+        String form = "requests=" + URLEncoder.encode(batch.createPayload(null), "UTF-8");
+
+        PHTransportRequest request = new PHTransportRequest(PHTransportRequest.POST, server.getUrl());
+        request.setBody(form.getBytes("UTF-8"), "application/x-www-form-urlencoded");
+        request.setConnectTimeout(5000);
+        request.setReadTimeout(5000);
+
+        PHTransportResponse response = new PHURLConnectionTransport().execute(request, null);
+
+        try {
+            batch.onHttpRequestSucceeded(ByteBuffer.wrap(readFully(response.getBody())), response.getStatusCode());
+        } finally {
+            response.close();
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        if (in == null) return out.toByteArray();
+
+        byte[] buffer = new byte[4096];
+        int read;
+
+        while ((read = in.read(buffer)) != -1)
+            out.write(buffer, 0, read);
+
+        return out.toByteArray();
+    }
+
+    /** A request which doesn't need a context to describe itself and remembers what it was handed */
+    private static class RecordingRequest extends PHAPIRequest {
+
+        private final String path;
+
+        private final boolean isPost;
+
+        private final Hashtable<String, String> params = new Hashtable<String, String>();
+
+        final Hashtable<String, String> post = new Hashtable<String, String>();
+
+        boolean streaming;
+
+        JSONObject success;
+
+        PHError failure;
+
+        public RecordingRequest(String path, boolean isPost, String... keysAndValues) {
+            this.path   = path;
+            this.isPost = isPost;
+
+            for (int i = 0; i + 1 < keysAndValues.length; i += 2)
+                params.put(keysAndValues[i], keysAndValues[i + 1]);
+        }
+
+        @Override
+        public String baseURL(Context context) {
+            return API + path;
+        }
+
+        @Override
+        public Hashtable<String, String> getAdditionalParams(Context context) {
+            return params;
+        }
+
+        @Override
+        public PHAsyncRequest.RequestType getRequestType() {
+            return (isPost ? PHAsyncRequest.RequestType.Post : PHAsyncRequest.RequestType.Get);
+        }
+
+        @Override
+        public Hashtable<String, String> getPostParams() {
+            return post;
+        }
+
+        @Override
+        public boolean shouldStreamResponse() {
+            return streaming;
+        }
+
+        @Override
+        public void handleRequestSuccess(JSONObject res) {
+            success = res;
+        }
+
+        @Override
+        public void handleRequestFailure(PHError error) {
+            failure = error;
+        }
+    }
+
+    /**
+     * Implements the server side of the batch contract: every request gets back
+     * {"response": {"method": ..., "path": ..., "params": ..., "post": ...}} (an echo of its description)
+     * unless its params hold {@link #FAIL_PARAM}, in which case it gets {"error": <the param>}.
+     */
+    private static class StubBatchServer implements Runnable {
+
+        static final String FAIL_PARAM = "stub_fail";
+
+        private final ServerSocket socket;
+
+        private Thread thread;
+
+        /** The request descriptions of the last batch */
+        volatile JSONArray lastRequests;
+
+        /** Answer the whole batch with this status */
+        volatile int status = 200;
+
+        /** Leave the last request out of the responses */
+        volatile boolean dropLast;
+
+        public StubBatchServer() throws IOException {
+            socket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        }
+
+        public String getUrl() {
+            return "http://127.0.0.1:" + socket.getLocalPort() + "/v3/publisher/batch/";
+        }
+
+        public void start() {
+            thread = new Thread(this, "StubBatchServer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        public void stop() throws IOException {
+            socket.close();
+        }
+
+        @Override
+        public void run() {
+            while ( ! socket.isClosed()) {
+                Socket client = null;
+
+                try {
+                    client = socket.accept();
+
+                    handle(client);
+
+                } catch (IOException e) {
+                    // closed by stop()
+                } catch (JSONException e) {
+                    throw new RuntimeException(e);
+
+                } finally {
+                    if (client != null) {
+                        try {
+                            client.close();
+                        } catch (IOException e) {
+                            // nothing we can do
+                        }
+                    }
+                }
+            }
+        }
+
+        private void handle(Socket client) throws IOException, JSONException {
+            InputStream in = client.getInputStream();
+
+            int contentLength = 0;
+            String line;
+
+            while ((line = readLine(in)).length() > 0) {
+                if (line.toLowerCase().startsWith("content-length:"))
+                    contentLength = Integer.parseInt(line.substring("content-length:".length()).trim());
+            }
+
+            byte[] body = new byte[contentLength];
+
+            for (int read = 0; read < contentLength; ) {
+                int n = in.read(body, read, contentLength - read);
+
+                if (n == -1) throw new IOException("Body cut short");
+
+                read += n;
+            }
+
+            JSONObject answer = answer(new String(body, "UTF-8"));
+
+            byte[] response = answer.toString().getBytes("UTF-8");
+
+            OutputStream out = client.getOutputStream();
+            out.write(("HTTP/1.1 " + status + " Stub\r\n" +
+                       "Content-Type: application/json\r\n" +
+                       "Content-Length: " + response.length + "\r\n" +
+                       "Connection: close\r\n\r\n").getBytes("US-ASCII"));
+            out.write(response);
+            out.flush();
+        }
+
+        private JSONObject answer(String form) throws IOException, JSONException {
+            String requests = null;
+
+            for (String pair : form.split("&")) {
+                int equals = pair.indexOf('=');
+
+                if (equals > 0 && "requests".equals(pair.substring(0, equals)))
+                    requests = URLDecoder.decode(pair.substring(equals + 1), "UTF-8");
+            }
+
+            lastRequests = new JSONArray(requests);
+
+            JSONArray responses = new JSONArray();
+
+            int count = lastRequests.length() - (dropLast ? 1 : 0);
+
+            for (int i = 0; i < count; i++) {
+                JSONObject description = lastRequests.getJSONObject(i);
+                JSONObject params      = description.getJSONObject("params");
+
+                JSONObject response = new JSONObject();
+
+                if (params.has(FAIL_PARAM))
+                    response.put("error", params.getString(FAIL_PARAM));
+                else
+                    response.put("response", new JSONObject(description.toString()));
+
+                responses.put(response);
+            }
+
+            return new JSONObject().put("response", new JSONObject().put("responses", responses));
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+
+            while ((c = in.read()) != -1 && c != '\n') {
+                if (c != '\r') line.append((char) c);
+            }
+
+            return line.toString();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package v2.com.playhaven.test.unit;
+
+import org.junit.Test;
+import v2.com.playhaven.utils.PHStringUtil;
+
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * The server only understands the (quirky) query encoding of the original replace-in-a-loop
+ * implementation, so {@link PHStringUtil#createQuery(HashMap)} and {@link PHStringUtil#weakUrlEncode(String)}
+ * must produce exactly the same bytes. We check that against a copy of the original on lots of
+ * random input drawn mostly from the characters either of them treats specially.
+ */
+public class PHStringUtilEncodingTest {
+
+    /** Fixed so that a failure can be reproduced */
+    private static final long SEED = 0x5eed;
+
+    private static final int RUNS = 20000;
+
+    private static final String INTERESTING = ";? &=$,[]#!'()*%+:/@~-_.\\\"<>{}|^`\t\n";
+
+    private static final String UNICODE = "\u00e9\u00fc\u00df\u4e2d\u6587\u0416\u20ac\ud83d\ude00"; // accented, CJK, cyrillic, euro sign and a surrogate pair
+
+    @Test
+    public void weakUrlEncodeMatchesTheOriginal() {
+        Random random = new Random(SEED);
+
+        for (int i = 0; i < RUNS; i++) {
+            String value = randomString(random, 40);
+
+            assertEquals("for \"" + value + "\"", originalWeakUrlEncode(value), PHStringUtil.weakUrlEncode(value));
+        }
+    }
+
+    @Test
+    public void weakUrlEncodeMatchesTheOriginalOnEveryCharacter() {
+        for (char c = 0; c < 0x3000; c++) {
+            String value = "a" + c + c + "b";
+
+            assertEquals("for char " + (int) c, originalWeakUrlEncode(value), PHStringUtil.weakUrlEncode(value));
+        }
+    }
+
+    @Test
+    public void createQueryMatchesTheOriginal() {
+        Random random = new Random(SEED);
+
+        for (int i = 0; i < RUNS / 10; i++) {
+            HashMap<String, String> dict = new HashMap<String, String>();
+
+            int pairs = random.nextInt(12);
+
+            for (int j = 0; j < pairs; j++) {
+                String key   = (random.nextInt(20) == 0 ? null : randomString(random, 12));
+                String value = (random.nextInt(20) == 0 ? null : randomString(random, 40));
+
+                dict.put(key, value);
+            }
+
+            // the same map (and so the same iteration order) for both
+            assertEquals("for " + dict, originalCreateQuery(dict), PHStringUtil.createQuery(dict));
+        }
+    }
+
+    @Test
+    public void nullsAreHandledLikeTheOriginal() {
+        assertNull(PHStringUtil.weakUrlEncode(null));
+        assertNull(PHStringUtil.createQuery(null));
+
+        HashMap<String, String> empty = new HashMap<String, String>();
+
+        assertEquals(originalCreateQuery(empty), PHStringUtil.createQuery(empty));
+    }
+
+    private static String randomString(Random random, int maxLength) {
+        int length = random.nextInt(maxLength + 1);
+
+        StringBuilder builder = new StringBuilder(length);
+
+        for (int i = 0; i < length; i++) {
+            switch (random.nextInt(4)) {
+                case 0:
+                case 1:
+                    builder.append(INTERESTING.charAt(random.nextInt(INTERESTING.length())));
+                    break;
+
+                case 2:
+                    builder.append((char) (' ' + random.nextInt(95)));
+                    break;
+
+                default:
+                    builder.append(UNICODE.charAt(random.nextInt(UNICODE.length())));
+                    break;
+            }
+        }
+
+        return builder.toString();
+    }
+
+    ///////////////////////////////////////////////////////////
+    //////// The original implementation (as it shipped) ///////
+
+    private static String originalCreateQuery(HashMap<String, String> dict) {
+        if (dict == null) return null;
+
+        StringBuilder query = new StringBuilder();
+
+        for (Map.Entry<String, String>  entry : dict.entrySet()) {
+
+            String key   = entry.getKey();
+            String value = entry.getValue();
+
+            if (key   == null ||
+                value == null) continue;
+
+            key   = URLEncoder.encode(key);
+            value = originalWeakUrlEncode(value);
+
+            query.append(String.format(
+                        query.length() == 0 ? "%s=%s"
+                                            : "&%s=%s",
+                        key,
+                        value)
+                        );
+
+        }
+
+        return query.toString();
+    }
+
+    private static String originalWeakUrlEncode(String url) {
+        if (url == null) return null;
+
+        String[] reserved    = {
+                             ";",  "?",  " ",
+                             "&",  "=",  "$",
+                             ",",  "[",  "]",
+                             "#",  "!",  "'",
+                             "(",  ")",  "*"
+                             };
+
+        String[] escaped     = {
+                             "%3B", "%3F", "+" ,
+                             "%26", "%3D", "%24" ,
+                             "%2C", "%5B", "%5D",
+                             "%21", "%27", "%28",
+                             "%28", "%29", "%2A"
+                             };
+
+        StringBuilder encUrl = new StringBuilder(url);
+
+        for(int i = 0; i < escaped.length; i++) {
+            String res = reserved[i];
+            String esc = escaped [i];
+
+            int index = encUrl.indexOf(res);
+            while(index != -1) {
+                encUrl.replace(index,
+                               index + res.length(),
+                               esc);
+
+                index = encUrl.indexOf(res);
+            }
+        }
+        return encUrl.toString();
+    }
+}